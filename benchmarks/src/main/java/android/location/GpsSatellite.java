@@ -0,0 +1,22 @@
+package android.location;
+
+/** Plain JVM stand-in for android.location.GpsSatellite. */
+public final class GpsSatellite {
+	private final int mPrn;
+	private final float mSnr, mElevation, mAzimuth;
+	private final boolean mUsedInFix;
+
+	public GpsSatellite(final int prn, final float snr, final float elevation,
+			final float azimuth, final boolean usedInFix) {
+		mPrn = prn; mSnr = snr; mElevation = elevation;
+		mAzimuth = azimuth; mUsedInFix = usedInFix;
+	}
+
+	public int getPrn() { return mPrn; }
+	public float getSnr() { return mSnr; }
+	public float getElevation() { return mElevation; }
+	public float getAzimuth() { return mAzimuth; }
+	public boolean usedInFix() { return mUsedInFix; }
+	public boolean hasAlmanac() { return true; }
+	public boolean hasEphemeris() { return true; }
+}
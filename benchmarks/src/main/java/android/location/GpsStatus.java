@@ -0,0 +1,35 @@
+package android.location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Plain JVM stand-in for android.location.GpsStatus. */
+public final class GpsStatus {
+	public static final int GPS_EVENT_STARTED = 1;
+	public static final int GPS_EVENT_STOPPED = 2;
+	public static final int GPS_EVENT_FIRST_FIX = 3;
+	public static final int GPS_EVENT_SATELLITE_STATUS = 4;
+
+	public interface Listener {
+		void onGpsStatusChanged(int event);
+	}
+
+	private final List<GpsSatellite> mSatellites = new ArrayList<GpsSatellite>();
+
+	public void setSatellites(final List<GpsSatellite> satellites) {
+		mSatellites.clear();
+		mSatellites.addAll(satellites);
+	}
+
+	public Iterable<GpsSatellite> getSatellites() {
+		return mSatellites;
+	}
+
+	public int getMaxSatellites() {
+		return 255;
+	}
+
+	public int getTimeToFirstFix() {
+		return 0;
+	}
+}
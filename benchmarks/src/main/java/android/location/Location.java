@@ -0,0 +1,98 @@
+package android.location;
+
+import android.os.Bundle;
+
+/** Plain JVM stand-in for android.location.Location. */
+public class Location {
+	private String mProvider;
+	private long mTime = 0;
+	private double mLatitude = 0.0, mLongitude = 0.0, mAltitude = 0.0;
+	private float mSpeed = 0.0f, mBearing = 0.0f, mAccuracy = 0.0f;
+	private boolean mHasAltitude, mHasSpeed, mHasBearing, mHasAccuracy;
+	private Bundle mExtras = null;
+
+	public Location(final String provider) {
+		mProvider = provider;
+	}
+
+	public Location(final Location l) {
+		set(l);
+	}
+
+	public void set(final Location l) {
+		mProvider = l.mProvider; mTime = l.mTime;
+		mLatitude = l.mLatitude; mLongitude = l.mLongitude; mAltitude = l.mAltitude;
+		mSpeed = l.mSpeed; mBearing = l.mBearing; mAccuracy = l.mAccuracy;
+		mHasAltitude = l.mHasAltitude; mHasSpeed = l.mHasSpeed;
+		mHasBearing = l.mHasBearing; mHasAccuracy = l.mHasAccuracy;
+		mExtras = l.mExtras;
+	}
+
+	public String getProvider() { return mProvider; }
+	public void setProvider(final String provider) { mProvider = provider; }
+	public long getTime() { return mTime; }
+	public void setTime(final long time) { mTime = time; }
+	public double getLatitude() { return mLatitude; }
+	public void setLatitude(final double latitude) { mLatitude = latitude; }
+	public double getLongitude() { return mLongitude; }
+	public void setLongitude(final double longitude) { mLongitude = longitude; }
+
+	public double getAltitude() { return mAltitude; }
+	public boolean hasAltitude() { return mHasAltitude; }
+	public void setAltitude(final double altitude) { mAltitude = altitude; mHasAltitude = true; }
+	public void removeAltitude() { mAltitude = 0.0; mHasAltitude = false; }
+
+	public float getSpeed() { return mSpeed; }
+	public boolean hasSpeed() { return mHasSpeed; }
+	public void setSpeed(final float speed) { mSpeed = speed; mHasSpeed = true; }
+	public void removeSpeed() { mSpeed = 0.0f; mHasSpeed = false; }
+
+	public float getBearing() { return mBearing; }
+	public boolean hasBearing() { return mHasBearing; }
+
+	public void setBearing(float bearing) {
+		while (bearing < 0.0f) bearing += 360.0f;
+		while (bearing >= 360.0f) bearing -= 360.0f;
+		mBearing = bearing;
+		mHasBearing = true;
+	}
+
+	public void removeBearing() { mBearing = 0.0f; mHasBearing = false; }
+
+	public float getAccuracy() { return mAccuracy; }
+	public boolean hasAccuracy() { return mHasAccuracy; }
+	public void setAccuracy(final float accuracy) { mAccuracy = accuracy; mHasAccuracy = true; }
+	public void removeAccuracy() { mAccuracy = 0.0f; mHasAccuracy = false; }
+
+	public Bundle getExtras() { return mExtras; }
+	public void setExtras(final Bundle extras) { mExtras = extras; }
+
+	/** Initial bearing on a sphere, good enough for the stand-in. */
+	public float bearingTo(final Location dest) {
+		final double lat1 = Math.toRadians(mLatitude), lat2 = Math.toRadians(dest.mLatitude);
+		final double dLon = Math.toRadians(dest.mLongitude - mLongitude);
+		final double y = Math.sin(dLon) * Math.cos(lat2);
+		final double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLon);
+		return (float) Math.toDegrees(Math.atan2(y, x));
+	}
+
+	/** Haversine distance in meters. */
+	public float distanceTo(final Location dest) {
+		final double lat1 = Math.toRadians(mLatitude), lat2 = Math.toRadians(dest.mLatitude);
+		final double dLat = lat2 - lat1, dLon = Math.toRadians(dest.mLongitude - mLongitude);
+		final double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		return (float) (6371009.0 * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a)));
+	}
+
+	@Override
+	public String toString() {
+		return "Location[mProvider=" + mProvider + ",mTime=" + mTime
+				+ ",mLatitude=" + mLatitude + ",mLongitude=" + mLongitude
+				+ ",mHasAltitude=" + mHasAltitude + ",mAltitude=" + mAltitude
+				+ ",mHasSpeed=" + mHasSpeed + ",mSpeed=" + mSpeed
+				+ ",mHasBearing=" + mHasBearing + ",mBearing=" + mBearing
+				+ ",mHasAccuracy=" + mHasAccuracy + ",mAccuracy=" + mAccuracy
+				+ ",mExtras=" + mExtras + "]";
+	}
+}
@@ -0,0 +1,14 @@
+package android.location;
+
+import android.os.Bundle;
+
+/** Plain JVM stand-in for android.location.LocationListener. */
+public interface LocationListener {
+	void onLocationChanged(Location location);
+
+	void onProviderDisabled(String provider);
+
+	void onProviderEnabled(String provider);
+
+	void onStatusChanged(String provider, int status, Bundle extras);
+}
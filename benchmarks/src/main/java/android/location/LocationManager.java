@@ -0,0 +1,51 @@
+package android.location;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Plain JVM stand-in for android.location.LocationManager. It never produces
+ * fixes itself, callers feed the listeners and set the last known fix.
+ */
+public class LocationManager {
+	public static final String GPS_PROVIDER = "gps";
+	public static final String NETWORK_PROVIDER = "network";
+
+	private final Map<String, Location> mLastKnown = new HashMap<String, Location>();
+	private final GpsStatus mStatus = new GpsStatus();
+
+	public void setLastKnownLocation(final Location location) {
+		mLastKnown.put(location.getProvider(), location);
+	}
+
+	public Location getLastKnownLocation(final String provider) {
+		return mLastKnown.get(provider);
+	}
+
+	/** The status returned to getGpsStatus(), fill in satellites to simulate. */
+	public GpsStatus getSimulatedStatus() {
+		return mStatus;
+	}
+
+	public GpsStatus getGpsStatus(final GpsStatus status) {
+		return mStatus;
+	}
+
+	public void requestLocationUpdates(final String provider, final long minTime,
+			final float minDistance, final LocationListener listener) {
+	}
+
+	public void removeUpdates(final LocationListener listener) {
+	}
+
+	public boolean addGpsStatusListener(final GpsStatus.Listener listener) {
+		return true;
+	}
+
+	public void removeGpsStatusListener(final GpsStatus.Listener listener) {
+	}
+
+	public boolean isProviderEnabled(final String provider) {
+		return true;
+	}
+}
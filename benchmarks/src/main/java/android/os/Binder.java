@@ -0,0 +1,5 @@
+package android.os;
+
+/** Plain JVM stand-in for android.os.Binder. */
+public class Binder implements IBinder {
+}
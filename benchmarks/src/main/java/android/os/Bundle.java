@@ -0,0 +1,28 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Plain JVM stand-in for android.os.Bundle, only what the service uses. */
+public final class Bundle {
+	private final Map<String, Object> mMap = new HashMap<String, Object>();
+
+	public void putFloat(final String key, final float value) { mMap.put(key, value); }
+	public void putInt(final String key, final int value) { mMap.put(key, value); }
+
+	public float getFloat(final String key) { return getFloat(key, 0f); }
+
+	public float getFloat(final String key, final float def) {
+		final Object o = mMap.get(key);
+		return o instanceof Float ? (Float) o : def;
+	}
+
+	public int getInt(final String key) { return getInt(key, 0); }
+
+	public int getInt(final String key, final int def) {
+		final Object o = mMap.get(key);
+		return o instanceof Integer ? (Integer) o : def;
+	}
+
+	public boolean containsKey(final String key) { return mMap.containsKey(key); }
+}
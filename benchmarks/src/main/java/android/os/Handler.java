@@ -0,0 +1,13 @@
+package android.os;
+
+/** Plain JVM stand-in for android.os.Handler, runs what is posted right away. */
+public class Handler {
+
+	public final boolean post(final Runnable r) {
+		r.run();
+		return true;
+	}
+
+	public final void removeCallbacks(final Runnable r) {
+	}
+}
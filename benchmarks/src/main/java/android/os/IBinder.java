@@ -0,0 +1,5 @@
+package android.os;
+
+/** Plain JVM stand-in for android.os.IBinder. */
+public interface IBinder {
+}
@@ -0,0 +1,6 @@
+package android.os;
+
+/** Plain JVM stand-in for android.os.IInterface. */
+public interface IInterface {
+	IBinder asBinder();
+}
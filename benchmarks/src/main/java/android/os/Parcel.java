@@ -0,0 +1,91 @@
+package android.os;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Plain JVM stand-in for android.os.Parcel, only what the service uses. Same
+ * layout as the real one: 4 byte aligned values, arrays as a length (-1 for
+ * null) and their elements, so dataSize() is what would cross the binder.
+ */
+public final class Parcel {
+	private ByteBuffer mData = ByteBuffer.allocate(256).order(ByteOrder.nativeOrder());
+
+	public static Parcel obtain() {
+		return new Parcel();
+	}
+
+	public void recycle() {
+		mData.clear();
+	}
+
+	public int dataSize() {
+		return mData.position();
+	}
+
+	public void setDataPosition(final int pos) {
+		mData.position(pos);
+	}
+
+	private void ensure(final int n) {
+		if (mData.remaining() < n) {
+			final ByteBuffer b = ByteBuffer.allocate(Math.max(mData.capacity() * 2,
+					mData.position() + n)).order(ByteOrder.nativeOrder());
+			mData.flip();
+			b.put(mData);
+			mData = b;
+		}
+	}
+
+	public void writeInt(final int v) { ensure(4); mData.putInt(v); }
+	public void writeLong(final long v) { ensure(8); mData.putLong(v); }
+	public void writeFloat(final float v) { ensure(4); mData.putFloat(v); }
+	public void writeDouble(final double v) { ensure(8); mData.putDouble(v); }
+
+	public int readInt() { return mData.getInt(); }
+	public long readLong() { return mData.getLong(); }
+	public float readFloat() { return mData.getFloat(); }
+	public double readDouble() { return mData.getDouble(); }
+
+	public void writeIntArray(final int[] a) {
+		if (a == null) { writeInt(-1); return; }
+		writeInt(a.length);
+		for (final int v : a) writeInt(v);
+	}
+
+	public void writeFloatArray(final float[] a) {
+		if (a == null) { writeInt(-1); return; }
+		writeInt(a.length);
+		for (final float v : a) writeFloat(v);
+	}
+
+	public void writeBooleanArray(final boolean[] a) {
+		if (a == null) { writeInt(-1); return; }
+		writeInt(a.length);
+		for (final boolean v : a) writeInt(v ? 1 : 0);
+	}
+
+	public int[] createIntArray() {
+		final int n = readInt();
+		if (n < 0) return null;
+		final int[] a = new int[n];
+		for (int i = 0; i < n; i++) a[i] = readInt();
+		return a;
+	}
+
+	public float[] createFloatArray() {
+		final int n = readInt();
+		if (n < 0) return null;
+		final float[] a = new float[n];
+		for (int i = 0; i < n; i++) a[i] = readFloat();
+		return a;
+	}
+
+	public boolean[] createBooleanArray() {
+		final int n = readInt();
+		if (n < 0) return null;
+		final boolean[] a = new boolean[n];
+		for (int i = 0; i < n; i++) a[i] = readInt() != 0;
+		return a;
+	}
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+/** Plain JVM stand-in for android.os.Parcelable. */
+public interface Parcelable {
+	int describeContents();
+
+	void writeToParcel(Parcel dest, int flags);
+
+	public interface Creator<T> {
+		T createFromParcel(Parcel source);
+
+		T[] newArray(int size);
+	}
+}
@@ -0,0 +1,89 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plain JVM stand-in for android.os.RemoteCallbackList: same broadcast
+ * protocol and, like the real one, a reused broadcast array; callbacks are
+ * in-process and never die.
+ */
+public class RemoteCallbackList<E extends IInterface> {
+	private final List<E> mCallbacks = new ArrayList<E>();
+	private final List<Object> mCookies = new ArrayList<Object>();
+	private Object[] mActive = new Object[0];
+	private Object[] mActiveCookies = new Object[0];
+	private int mBroadcastCount = -1;
+	private boolean mKilled = false;
+
+	public boolean register(final E callback) {
+		return register(callback, null);
+	}
+
+	public synchronized boolean register(final E callback, final Object cookie) {
+		if (mKilled || mCallbacks.contains(callback))
+			return false;
+		mCallbacks.add(callback);
+		mCookies.add(cookie);
+		return true;
+	}
+
+	public synchronized boolean unregister(final E callback) {
+		final int i = mCallbacks.indexOf(callback);
+		if (i < 0)
+			return false;
+		mCallbacks.remove(i);
+		mCookies.remove(i);
+		return true;
+	}
+
+	public synchronized void kill() {
+		mCallbacks.clear();
+		mCookies.clear();
+		mKilled = true;
+	}
+
+	public void onCallbackDied(final E callback) {
+	}
+
+	public void onCallbackDied(final E callback, final Object cookie) {
+		onCallbackDied(callback);
+	}
+
+	public synchronized int beginBroadcast() {
+		if (mBroadcastCount >= 0)
+			throw new IllegalStateException("beginBroadcast() called while already in a broadcast");
+		final int n = mCallbacks.size();
+		if (mActive.length < n) {
+			mActive = new Object[n];
+			mActiveCookies = new Object[n];
+		}
+		for (int i = 0; i < n; i++) {
+			mActive[i] = mCallbacks.get(i);
+			mActiveCookies[i] = mCookies.get(i);
+		}
+		mBroadcastCount = n;
+		return n;
+	}
+
+	@SuppressWarnings("unchecked")
+	public E getBroadcastItem(final int index) {
+		return (E) mActive[index];
+	}
+
+	public Object getBroadcastCookie(final int index) {
+		return mActiveCookies[index];
+	}
+
+	public synchronized void finishBroadcast() {
+		for (int i = 0; i < mBroadcastCount; i++) {
+			mActive[i] = null;
+			mActiveCookies[i] = null;
+		}
+		mBroadcastCount = -1;
+	}
+
+	public synchronized int getRegisteredCallbackCount() {
+		return mCallbacks.size();
+	}
+}
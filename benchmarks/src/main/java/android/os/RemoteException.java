@@ -0,0 +1,6 @@
+package android.os;
+
+/** Plain JVM stand-in for android.os.RemoteException. */
+public class RemoteException extends Exception {
+	private static final long serialVersionUID = 1L;
+}
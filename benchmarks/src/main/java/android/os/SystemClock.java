@@ -0,0 +1,15 @@
+package android.os;
+
+/** Plain JVM stand-in for android.os.SystemClock. */
+public final class SystemClock {
+	private SystemClock() {
+	}
+
+	public static long elapsedRealtime() {
+		return System.nanoTime() / 1000000L;
+	}
+
+	public static long uptimeMillis() {
+		return System.nanoTime() / 1000000L;
+	}
+}
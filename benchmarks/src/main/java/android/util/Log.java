@@ -0,0 +1,29 @@
+package android.util;
+
+/**
+ * Plain JVM stand-in for android.util.Log. Logging is dropped so that the
+ * benchmarks measure the code around it, set -Dgpstether.log=true to print.
+ */
+public final class Log {
+	private static final boolean PRINT = Boolean.getBoolean("gpstether.log");
+
+	private Log() {
+	}
+
+	private static int print(final String level, final String tag, final String msg) {
+		if (PRINT) {
+			System.err.println(level + "/" + tag + ": " + msg);
+		}
+		return 0;
+	}
+
+	public static int v(final String tag, final String msg) { return print("V", tag, msg); }
+	public static int d(final String tag, final String msg) { return print("D", tag, msg); }
+	public static int i(final String tag, final String msg) { return print("I", tag, msg); }
+	public static int w(final String tag, final String msg) { return print("W", tag, msg); }
+	public static int e(final String tag, final String msg) { return print("E", tag, msg); }
+
+	public static int e(final String tag, final String msg, final Throwable tr) {
+		return print("E", tag, msg + ": " + tr);
+	}
+}
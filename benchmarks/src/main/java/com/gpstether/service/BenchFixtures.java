@@ -0,0 +1,156 @@
+package com.gpstether.service;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+
+import android.location.GpsSatellite;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.RemoteCallbackList;
+
+/** Shared test data for the benchmarks: a moving track and sink channels. */
+public final class BenchFixtures {
+
+	/** Fix count of a generated track, a power of two. */
+	public static final int TRACK_LENGTH = 1024;
+
+	private BenchFixtures() {
+	}
+
+	/**
+	 * A vehicle driving north-east at 15 m/s with 5 Hz fixes, the rate the
+	 * service asks the GPS for.
+	 */
+	public static Location[] track(final String provider) {
+		final Location[] track = new Location[TRACK_LENGTH];
+		final Bundle extras = new Bundle();
+		extras.putFloat("pdop", 1.8f);
+		extras.putFloat("hdop", 0.9f);
+		extras.putFloat("vdop", 1.5f);
+		long time = 1318000000000L;
+		double lat = 48.208174, lon = 16.373819, alt = 171.0;
+		for (int i = 0; i < track.length; i++) {
+			final Location l = new Location(provider);
+			l.setTime(time);
+			l.setLatitude(lat);
+			l.setLongitude(lon);
+			l.setAltitude(alt);
+			l.setSpeed(15.0f);
+			l.setBearing(45.0f);
+			l.setAccuracy(4.0f);
+			l.setExtras(extras);
+			track[i] = l;
+			time += Constants.GPS_UPDATE_MS_TH;
+			lat += 0.0000191;
+			lon += 0.0000286;
+			alt += 0.05;
+		}
+		return track;
+	}
+
+	/** A location manager that knows a last fix and a dozen satellites. */
+	public static LocationManager locationManager(final Location last) {
+		final LocationManager lm = new LocationManager();
+		lm.setLastKnownLocation(last);
+		final java.util.List<GpsSatellite> sats = new java.util.ArrayList<GpsSatellite>();
+		for (int prn = 1; prn <= 12; prn++) {
+			sats.add(new GpsSatellite(prn * 2, 20 + prn, 10 + prn * 6, prn * 30, prn <= 9));
+		}
+		lm.getSimulatedStatus().setSatellites(sats);
+		return lm;
+	}
+
+	public static CallbackThread callbackThread(final Location[] track) {
+		final CallbackThread cb = new CallbackThread(0,
+				locationManager(track[0]), new RemoteCallbackList<ITetherServiceCallback>());
+		cb.onGpsStatusChanged(android.location.GpsStatus.GPS_EVENT_SATELLITE_STATUS);
+		cb.onLocationChanged(track[0]);
+		return cb;
+	}
+
+	/**
+	 * Swallows everything written, like a client that always keeps up. Reads
+	 * return whatever was last handed to {@link #feed(byte[])}, once.
+	 */
+	public static final class NullChannel implements ByteChannel, GatheringByteChannel {
+		public long written = 0;
+		private byte[] mInput = null;
+
+		public void feed(final byte[] input) {
+			mInput = input;
+		}
+
+		public static byte[] ascii(final String str) {
+			final byte[] b = new byte[str.length()];
+			for (int i = 0; i < b.length; i++) {
+				b[i] = (byte) str.charAt(i);
+			}
+			return b;
+		}
+
+		public int write(final ByteBuffer src) {
+			final int n = src.remaining();
+			src.position(src.limit());
+			written += n;
+			return n;
+		}
+
+		public long write(final ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public long write(final ByteBuffer[] srcs, final int offset, final int length) {
+			long n = 0;
+			for (int i = offset; i < offset + length; i++) {
+				n += write(srcs[i]);
+			}
+			return n;
+		}
+
+		public int read(final ByteBuffer dst) {
+			if (mInput == null)
+				return 0;
+			final int n = Math.min(mInput.length, dst.remaining());
+			dst.put(mInput, 0, n);
+			mInput = null;
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * Counts callbacks instead of crossing a process boundary; fixes are
+	 * marshalled like the binder would, to count their bytes.
+	 */
+	public static final class CountingCallback extends ITetherServiceCallback.Stub {
+		public int calls = 0;
+		public int chars = 0;
+		public long bytes = 0;
+		private final android.os.Parcel mParcel = android.os.Parcel.obtain();
+
+		public void gpsChanged(final String str) {
+			calls++;
+			chars += str.length();
+		}
+
+		public void fixChanged(final GpsFix fix) {
+			calls++;
+			mParcel.recycle();
+			fix.writeToParcel(mParcel, 0);
+			bytes += mParcel.dataSize();
+		}
+
+		public void statusChanged(final boolean running, final int port, final int clients,
+				final boolean gpsOnline) {
+			calls++;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.gpstether.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.location.Location;
+import android.os.RemoteCallbackList;
+
+/**
+ * Cost of a fix on the service side: the AIDL broadcast to bound activities,
+ * as Location strings or as GpsFix parcels, and the encode plus fan-out to
+ * simulated gpsd clients that watch (w+), stream raw NMEA (r) and JSON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+
+	@Param({ "1", "10", "100" })
+	public int clients;
+
+	private Location[] mTrack;
+	private long mStart;
+	private CallbackThread mCB;
+	private CallbackThread mFixCB;
+	private CallbackThread mSilentCB;
+	private ClientSession[] mSessions;
+	private int mNext = 1;
+	private long mNow = 0;
+
+	@Setup
+	public void setup() {
+		mTrack = BenchFixtures.track("gps");
+		mStart = mTrack[0].getTime();
+
+		final RemoteCallbackList<ITetherServiceCallback> callbacks =
+				new RemoteCallbackList<ITetherServiceCallback>();
+		for (int i = 0; i < clients; i++) {
+			callbacks.register(new BenchFixtures.CountingCallback());
+		}
+		mCB = new CallbackThread(0, BenchFixtures.locationManager(mTrack[0]), callbacks);
+		mCB.onLocationChanged(mTrack[0]);
+
+		final RemoteCallbackList<ITetherServiceCallback> fixCallbacks =
+				new RemoteCallbackList<ITetherServiceCallback>();
+		for (int i = 0; i < clients; i++) {
+			fixCallbacks.register(new BenchFixtures.CountingCallback(),
+					new FixSubscription(0, false));
+		}
+		mFixCB = new CallbackThread(0, BenchFixtures.locationManager(mTrack[0]), fixCallbacks);
+		mFixCB.onLocationChanged(mTrack[0]);
+
+		mSilentCB = BenchFixtures.callbackThread(mTrack);
+		mSessions = new ClientSession[clients];
+		for (int i = 0; i < clients; i++) {
+			final BenchFixtures.NullChannel channel = new BenchFixtures.NullChannel();
+			mSessions[i] = new ClientSession(channel, null, mSilentCB);
+			channel.feed(BenchFixtures.NullChannel.ascii("w1\nr\n"));
+			mSessions[i].onReadable();
+		}
+	}
+
+	private Location nextFix() {
+		final Location fix = mTrack[mNext & (BenchFixtures.TRACK_LENGTH - 1)];
+		// later laps of the track must not look like repeated fixes
+		fix.setTime(mStart + mNext++ * Constants.GPS_UPDATE_MS_TH);
+		return fix;
+	}
+
+	/** The AIDL callback broadcast alone, for the current fix. */
+	@Benchmark
+	public void sendLocChangeToClient() {
+		mCB.sendLocChangeToClient();
+	}
+
+	/** The same broadcast to callbacks that take a GpsFix. */
+	@Benchmark
+	public void sendFixToClient() {
+		mFixCB.sendLocChangeToClient();
+	}
+
+	/** One new fix: encode the shared frame and stream it to every client. */
+	@Benchmark
+	public long encodeAndFanOut() {
+		mSilentCB.onLocationChanged(nextFix());
+		final GpsFrame.Views views = mSilentCB.getFrame().newViews();
+		mNow += Constants.GPS_UPDATE_MS_TH;
+		long due = 0;
+		for (int i = 0; i < mSessions.length; i++) {
+			due += mSessions[i].onFix(views, mNow);
+		}
+		return due;
+	}
+}
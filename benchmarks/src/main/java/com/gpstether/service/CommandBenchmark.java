@@ -0,0 +1,52 @@
+package com.gpstether.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of answering the legacy gpsd command lines of one socket read, from
+ * the receive buffer to the reply handed to the channel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandBenchmark {
+
+	@Param({ "p", "d", "va", "o", "x", "pdvaoutxqpdvaoutxqpdvaoutxqpdvaoutxq",
+			"p;d;va;o;x;q;a;t" })
+	public String command;
+
+	private BenchFixtures.NullChannel mChannel;
+	private ClientSession mSession;
+	private byte[] mInput;
+
+	@Setup
+	public void setup() {
+		final CallbackThread cb = BenchFixtures.callbackThread(BenchFixtures.track("gps"));
+		mChannel = new BenchFixtures.NullChannel();
+		mSession = new ClientSession(mChannel, null, cb);
+		// ';' stands for a line break: several command lines in one segment
+		mInput = BenchFixtures.NullChannel.ascii(command.replace(';', '\n') + "\n");
+	}
+
+	@Benchmark
+	public long onReadable() {
+		mChannel.feed(mInput);
+		mSession.onReadable();
+		return mChannel.written;
+	}
+}
@@ -0,0 +1,18 @@
+package com.gpstether.service;
+
+/** Plain JVM stand-in for the interface aidl generates from ITetherServiceCallback.aidl. */
+public interface ITetherServiceCallback extends android.os.IInterface {
+
+	public static abstract class Stub extends android.os.Binder implements ITetherServiceCallback {
+		public android.os.IBinder asBinder() {
+			return this;
+		}
+	}
+
+	void gpsChanged(String str) throws android.os.RemoteException;
+
+	void fixChanged(GpsFix fix) throws android.os.RemoteException;
+
+	void statusChanged(boolean running, int port, int clients, boolean gpsOnline)
+			throws android.os.RemoteException;
+}
@@ -0,0 +1,388 @@
+package com.gpstether.service;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import android.location.GpsStatus;
+import android.location.Location;
+import android.os.Bundle;
+import android.os.RemoteCallbackList;
+
+/**
+ * Load generator for the gpsd listener. Starts the server in this JVM on
+ * the service's default port, feeds it a synthetic track at a fixed rate and
+ * connects hundreds of clients from one selector thread: pollers cycle
+ * through p, d, va and o, watchers stream w+ and raw clients r+. At the end
+ * it prints reply throughput and latency, fix-to-wire latency (from the
+ * location callback to the first byte of the frame at the client), frames
+ * streamers missed, and the RSS and thread count of the JVM.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.gpstether.service.LoadTest \
+ *     --clients 500 --streaming 0.5 --raw 0.5 --rate 5 --think 100 --seconds 30
+ * </pre>
+ *
+ * The clients share the JVM with the server, so RSS and threads include the
+ * harness: the selector thread, the fix feeder and a few buffers.
+ */
+public final class LoadTest {
+
+	private static final int POLL = 0;
+	private static final int WATCH = 1;
+	private static final int RAW = 2;
+
+	private static final byte[][] POLL_COMMANDS = { ascii("p\n"), ascii("d\n"),
+			ascii("va\n"), ascii("o\n") };
+
+	// 2011-10-08T00:00:00Z, so the time of day in GGA is the time since start
+	private static final long BASE_TIME = 1318032000000L;
+	private static final int PUBLISHED = 1 << 14;
+
+	private final int mPort;
+	private final int mClients;
+	private final double mStreaming;
+	private final double mRaw;
+	private final long mPeriodMs;
+	private final long mThinkMs;
+	private final long mSeconds;
+	private final int mLoops;
+
+	private final long[] mPublishNanos = new long[PUBLISHED];
+	private volatile long mPublished = 0;
+	private volatile boolean mDone = false;
+
+	private final Samples mReplyLatency = new Samples();
+	private final Samples mWireLatency = new Samples();
+	private final Samples mFixCost = new Samples();
+	private long mReplies = 0;
+	private long mFrames = 0;
+	private long mMissed = 0;
+	private long mBytes = 0;
+	private int mConnected = 0;
+	private int mDisconnects = 0;
+
+	private LoadTest(final Map<String, String> opt) {
+		mPort = Integer.parseInt(get(opt, "port", "2947"));
+		mClients = Integer.parseInt(get(opt, "clients", "200"));
+		mStreaming = Double.parseDouble(get(opt, "streaming", "0.5"));
+		mRaw = Double.parseDouble(get(opt, "raw", "0.5"));
+		// a whole number of centiseconds, the resolution of the gpsd timestamp
+		final double rate = Double.parseDouble(get(opt, "rate", "5"));
+		mPeriodMs = Math.max(10, Math.round(100 / rate) * 10);
+		mThinkMs = Long.parseLong(get(opt, "think", "100"));
+		mSeconds = Long.parseLong(get(opt, "seconds", "30"));
+		mLoops = Integer.parseInt(get(opt, "loops", String.valueOf(Constants.SELECTOR_LOOPS)));
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final Map<String, String> opt = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("--"))
+				throw new IllegalArgumentException("expected --option value, got " + args[i]);
+			opt.put(args[i].substring(2), args[i + 1]);
+		}
+		new LoadTest(opt).run();
+	}
+
+	private static String get(final Map<String, String> opt, final String key, final String def) {
+		final String v = opt.get(key);
+		return v != null ? v : def;
+	}
+
+	private void run() throws Exception {
+		final Location first = fix(0);
+		final CallbackThread cb = new CallbackThread(mPort, mLoops,
+				BenchFixtures.locationManager(first),
+				new RemoteCallbackList<ITetherServiceCallback>());
+		cb.onGpsStatusChanged(GpsStatus.GPS_EVENT_SATELLITE_STATUS);
+		cb.start();
+		Thread.sleep(300);
+
+		final Thread feeder = new Thread("loadtest-feeder") {
+			@Override
+			public void run() {
+				feed(cb);
+			}
+		};
+		System.out.println("clients " + mClients + ", streaming " + mStreaming + " (raw "
+				+ mRaw + "), fix every " + mPeriodMs + " ms, poll think " + mThinkMs
+				+ " ms, " + mLoops + " selector loops, " + mSeconds + " s");
+		feeder.start();
+		final long start = System.nanoTime();
+		drive();
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		final String status = procStatus();
+		mDone = true;
+		feeder.join();
+		cb.requestExitAndWait();
+		report(seconds, status);
+	}
+
+	private Location fix(final long i) {
+		final Location l = new Location("gps");
+		final Bundle extras = new Bundle();
+		extras.putFloat("pdop", 1.8f);
+		extras.putFloat("hdop", 0.9f);
+		extras.putFloat("vdop", 1.5f);
+		l.setExtras(extras);
+		l.setTime(BASE_TIME + i * mPeriodMs);
+		l.setLatitude(48.208174 + i * 0.0000191);
+		l.setLongitude(16.373819 + i * 0.0000286);
+		l.setAltitude(171.0 + (i & 63) * 0.05);
+		l.setSpeed(15.0f);
+		l.setBearing(45.0f);
+		l.setAccuracy(4.0f);
+		return l;
+	}
+
+	/** Publishes a fix every period, like the location manager would. */
+	private void feed(final CallbackThread cb) {
+		final long start = System.nanoTime();
+		for (long i = 1; !mDone; i++) {
+			final long due = start + i * mPeriodMs * 1000000L;
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			final Location l = fix(i);
+			final long t = System.nanoTime();
+			mPublishNanos[(int) i & (PUBLISHED - 1)] = t;
+			mPublished = i;
+			cb.onLocationChanged(l);
+			// read only after the feeder is joined
+			mFixCost.add(System.nanoTime() - t);
+		}
+	}
+
+	private static final class Client {
+		final int kind;
+		final SocketChannel channel;
+		final ByteBuffer out = ByteBuffer.allocate(16);
+		final byte[] line = new byte[64];
+		int lineLen = 0;
+		int command = 0;
+		long sentAt = 0; // 0 when no request is outstanding
+		long nextSend = 0;
+		long lastFix = -1;
+
+		Client(final int kind, final SocketChannel channel) {
+			this.kind = kind;
+			this.channel = channel;
+		}
+	}
+
+	private void drive() throws IOException {
+		final Selector selector = Selector.open();
+		final Client[] clients = new Client[mClients];
+		final int streaming = (int) Math.round(mClients * mStreaming);
+		final int raw = (int) Math.round(streaming * mRaw);
+		for (int i = 0; i < clients.length; i++) {
+			final SocketChannel ch = SocketChannel.open();
+			ch.configureBlocking(false);
+			final int kind = i < raw ? RAW : i < streaming ? WATCH : POLL;
+			clients[i] = new Client(kind, ch);
+			ch.connect(new InetSocketAddress("127.0.0.1", mPort));
+			ch.register(selector, SelectionKey.OP_CONNECT, clients[i]);
+		}
+
+		final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+		final long end = System.nanoTime() + mSeconds * 1000000000L;
+		long now;
+		while ((now = System.nanoTime()) < end) {
+			long next = end;
+			for (int i = 0; i < clients.length; i++) {
+				final Client c = clients[i];
+				if (c.kind != POLL || c.sentAt != 0 || c.nextSend == 0)
+					continue;
+				if (c.nextSend <= now) {
+					send(c, POLL_COMMANDS[c.command++ & 3], now);
+				} else if (c.nextSend < next) {
+					next = c.nextSend;
+				}
+			}
+			selector.select(Math.max(1, (next - now) / 1000000L));
+			final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				final SelectionKey key = keys.next();
+				keys.remove();
+				final Client c = (Client) key.attachment();
+				try {
+					if (key.isConnectable()) {
+						c.channel.finishConnect();
+						key.interestOps(SelectionKey.OP_READ);
+						mConnected++;
+						if (c.kind == POLL) {
+							c.nextSend = System.nanoTime();
+						} else {
+							send(c, c.kind == RAW ? ascii("r+\n") : ascii("w+\n"), 0);
+						}
+					} else if (key.isReadable()) {
+						in.clear();
+						final int n = c.channel.read(in);
+						if (n < 0) {
+							mDisconnects++;
+							key.cancel();
+							c.channel.close();
+							continue;
+						}
+						mBytes += n;
+						received(c, in, n, System.nanoTime());
+					}
+				} catch (final IOException e) {
+					mDisconnects++;
+					key.cancel();
+					c.channel.close();
+				}
+			}
+		}
+		for (int i = 0; i < clients.length; i++) {
+			clients[i].channel.close();
+		}
+		selector.close();
+	}
+
+	private static void send(final Client c, final byte[] command, final long now)
+			throws IOException {
+		c.out.clear();
+		c.out.put(command).flip();
+		c.channel.write(c.out);
+		c.sentAt = now;
+	}
+
+	private void received(final Client c, final ByteBuffer in, final int n, final long now) {
+		for (int i = 0; i < n; i++) {
+			final byte b = in.get(i);
+			if (b == '\n') {
+				onLine(c, now);
+				c.lineLen = 0;
+			} else if (c.lineLen < c.line.length) {
+				c.line[c.lineLen++] = b;
+			}
+		}
+	}
+
+	private void onLine(final Client c, final long now) {
+		if (c.kind == POLL) {
+			if (c.sentAt != 0) {
+				mReplyLatency.add(now - c.sentAt);
+				mReplies++;
+				c.sentAt = 0;
+				c.nextSend = now + mThinkMs * 1000000L;
+			}
+			return;
+		}
+		// the nav line and GGA both carry the fix time
+		final long time = c.kind == RAW ? ggaTime(c.line, c.lineLen) : navTime(c.line, c.lineLen);
+		if (time < 0)
+			return;
+		final long fix = (time - BASE_TIME) / mPeriodMs;
+		if (fix <= 0 || fix > mPublished || mPublished - fix >= PUBLISHED)
+			return;
+		mWireLatency.add(now - mPublishNanos[(int) fix & (PUBLISHED - 1)]);
+		mFrames++;
+		if (c.lastFix > 0 && fix > c.lastFix + 1) {
+			mMissed += fix - c.lastFix - 1;
+		}
+		c.lastFix = fix;
+	}
+
+	/** GPSD,O=GGA 1318032000.20 ..., the fix time in ms or -1. */
+	private static long navTime(final byte[] l, final int len) {
+		if (len < 12 || l[5] != 'O' || l[6] != '=')
+			return -1;
+		long ms = 0;
+		int i = 11;
+		for (; i < len && l[i] != '.'; i++) {
+			ms = ms * 10 + l[i] - '0';
+		}
+		if (i + 2 >= len)
+			return -1;
+		return ms * 1000 + (l[i + 1] - '0') * 100 + (l[i + 2] - '0') * 10;
+	}
+
+	/** $GPGGA,hhmmss.ss,..., the fix time in ms or -1. */
+	private static long ggaTime(final byte[] l, final int len) {
+		if (len < 16 || l[3] != 'G' || l[4] != 'G' || l[5] != 'A')
+			return -1;
+		final int h = (l[7] - '0') * 10 + l[8] - '0';
+		final int m = (l[9] - '0') * 10 + l[10] - '0';
+		final int s = (l[11] - '0') * 10 + l[12] - '0';
+		final int cs = (l[14] - '0') * 10 + l[15] - '0';
+		return BASE_TIME + ((h * 60L + m) * 60 + s) * 1000 + cs * 10;
+	}
+
+	private static String procStatus() {
+		final StringBuilder sb = new StringBuilder();
+		try {
+			final BufferedReader r = new BufferedReader(new FileReader("/proc/self/status"));
+			String line;
+			while ((line = r.readLine()) != null) {
+				if (line.startsWith("VmRSS") || line.startsWith("VmHWM")
+						|| line.startsWith("Threads")) {
+					sb.append(line.replaceAll("\\s+", " ")).append(", ");
+				}
+			}
+			r.close();
+		} catch (final IOException e) {
+			sb.append("no /proc/self/status, ");
+		}
+		final Runtime rt = Runtime.getRuntime();
+		sb.append("heap used ").append((rt.totalMemory() - rt.freeMemory()) >> 20).append(" MB");
+		return sb.toString();
+	}
+
+	private void report(final double seconds, final String status) {
+		System.out.println(String.format("connected %d, disconnected %d, %.1f s", mConnected,
+				mDisconnects, seconds));
+		System.out.println(String.format("replies %d (%.0f/s), latency %s", mReplies,
+				mReplies / seconds, mReplyLatency.percentiles()));
+		System.out.println(String.format("frames %d (%.0f/s), missed %d, fix-to-wire %s",
+				mFrames, mFrames / seconds, mMissed, mWireLatency.percentiles()));
+		System.out.println(String.format("fixes %d, callback %s", mPublished,
+				mFixCost.percentiles()));
+		System.out.println(String.format("received %.1f MB (%.2f MB/s)", mBytes / 1e6,
+				mBytes / 1e6 / seconds));
+		System.out.println(status);
+	}
+
+	private static byte[] ascii(final String s) {
+		return BenchFixtures.NullChannel.ascii(s);
+	}
+
+	/** Latency samples in ns, kept whole so the percentiles are exact. */
+	private static final class Samples {
+		private long[] mValues = new long[1024];
+		private int mCount = 0;
+
+		void add(final long value) {
+			if (mCount == mValues.length) {
+				mValues = Arrays.copyOf(mValues, mCount * 2);
+			}
+			mValues[mCount++] = value;
+		}
+
+		String percentiles() {
+			if (mCount == 0)
+				return "n/a";
+			final long[] v = Arrays.copyOf(mValues, mCount);
+			Arrays.sort(v);
+			return String.format("p50 %.0f us, p99 %.0f us, p999 %.0f us, max %.0f us",
+					at(v, 0.5), at(v, 0.99), at(v, 0.999), v[v.length - 1] / 1e3);
+		}
+
+		private static double at(final long[] sorted, final double q) {
+			return sorted[Math.min(sorted.length - 1, (int) (q * sorted.length))] / 1e3;
+		}
+	}
+}
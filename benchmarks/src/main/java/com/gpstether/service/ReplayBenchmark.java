@@ -0,0 +1,128 @@
+package com.gpstether.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.os.Bundle;
+
+/**
+ * Replays a recorded track of {@link BenchFixtures#TRACK_LENGTH} fixes as
+ * fast as possible, either into a listener that only counts (the cost of
+ * reading and parsing) or into the service, which also encodes every fix.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+
+	@Param({ "nmea", "binary" })
+	public String format;
+
+	@Param({ "count", "service" })
+	public String sink;
+
+	private File mDir;
+	private File mFile;
+	private Location[] mTrack;
+	private LocationListener mSink;
+
+	@Setup
+	public void setup() throws IOException {
+		final Location[] track = mTrack = BenchFixtures.track("gps");
+		mDir = File.createTempFile("replay", "");
+		mDir.delete();
+		mDir.mkdirs();
+		if (format.equals("nmea")) {
+			mFile = new File(mDir, "track.nmea");
+			final NmeaEncoder nmea = new NmeaEncoder(new AsciiBuffer(256));
+			final FileOutputStream out = new FileOutputStream(mFile);
+			for (final Location l : track) {
+				nmea.getBuffer().reset();
+				nmea.setFix(l.getTime(), l.getLatitude(), l.getLongitude(), l.getAltitude(),
+						l.getSpeed(), l.getBearing(), true);
+				nmea.setSatellites(9, 1.8f, 0.9f, 1.5f);
+				nmea.gga();
+				nmea.rmc();
+				out.write(nmea.getBuffer().array(), 0, nmea.getBuffer().length());
+			}
+			out.close();
+		} else {
+			final TrackRecorder recorder = new TrackRecorder(mDir, TrackRecorder.FORMAT_BINARY,
+					1 << 20, Long.MAX_VALUE);
+			recorder.start();
+			for (final Location l : track) {
+				recorder.record(l, 9);
+			}
+			// the track must be complete before it is replayed, however long that takes
+			recorder.requestExit();
+			recorder.waitForExit(Long.MAX_VALUE);
+			mFile = mDir.listFiles()[0];
+		}
+		mSink = new CountingListener();
+	}
+
+	/**
+	 * The service drops fixes not newer than the last one, so every replay of
+	 * the same track goes into a service that has not seen it yet.
+	 */
+	@Setup(Level.Invocation)
+	public void newSink() {
+		if (sink.equals("service")) {
+			mSink = BenchFixtures.callbackThread(mTrack);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (final File f : mDir.listFiles()) {
+			f.delete();
+		}
+		mDir.delete();
+	}
+
+	@Benchmark
+	public long replayTrack() {
+		final TrackReplay replay = new TrackReplay(mFile, mSink, 0, false);
+		replay.run();
+		return replay.getReplayed();
+	}
+
+	static final class CountingListener implements LocationListener {
+		long fixes = 0;
+
+		public void onLocationChanged(final Location location) {
+			fixes++;
+		}
+
+		public void onProviderDisabled(final String provider) {
+		}
+
+		public void onProviderEnabled(final String provider) {
+		}
+
+		public void onStatusChanged(final String provider, final int status,
+				final Bundle extras) {
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.gpstether.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.location.Location;
+
+/**
+ * Cost of turning one fix into gpsd output: the legacy String API of
+ * CallbackThread next to the frame encoding that streaming clients share.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SentenceBenchmark {
+
+	private Location[] mTrack;
+	private CallbackThread mCB;
+	private NmeaEncoder mNmea;
+	private SatelliteSnapshot mSats;
+	private final AsciiBuffer mReply = new AsciiBuffer(256);
+	private int mNext = 0;
+
+	@Setup
+	public void setup() {
+		mTrack = BenchFixtures.track("gps");
+		mCB = BenchFixtures.callbackThread(mTrack);
+		mNmea = new NmeaEncoder(new AsciiBuffer(512));
+		mSats = SatelliteSnapshot.of(BenchFixtures.locationManager(mTrack[0]).getGpsStatus(null));
+	}
+
+	@Benchmark
+	public String genGPGGA() {
+		return mCB.genGPGGA();
+	}
+
+	@Benchmark
+	public String genGPGLL() {
+		return mCB.genGPGLL();
+	}
+
+	@Benchmark
+	public String genGPGSA() {
+		return mCB.genGPGSA();
+	}
+
+	@Benchmark
+	public String genGPGSV() {
+		return mCB.genGPGSV();
+	}
+
+	@Benchmark
+	public String genGPRMC() {
+		return mCB.genGPRMC();
+	}
+
+	@Benchmark
+	public int appendNavInfo() {
+		mReply.reset();
+		mCB.appendNavInfo(mReply);
+		return mReply.length();
+	}
+
+	@Benchmark
+	public String getRawInfo() {
+		return mCB.getRawInfo();
+	}
+
+	/** The raw sentence block straight into a reused buffer, no Strings. */
+	@Benchmark
+	public int encodeRawBlock() {
+		final Location l = mTrack[mNext++ & (BenchFixtures.TRACK_LENGTH - 1)];
+		final AsciiBuffer b = mNmea.getBuffer();
+		b.reset();
+		mNmea.setFix(l.getTime(), l.getLatitude(), l.getLongitude(),
+				l.getAltitude(), l.getSpeed(), l.getBearing(), l.hasBearing());
+		mNmea.setSatellites(9, 1.8f, 0.9f, 1.5f);
+		mNmea.gsa(mSats);
+		mNmea.gsv(mSats);
+		mNmea.gga();
+		mNmea.gll();
+		mNmea.rmc();
+		return b.length();
+	}
+}
@@ -0,0 +1,130 @@
+package com.gpstether.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+
+/**
+ * Records fixes with {@link TrackRecorder} in both formats, replays the
+ * segment with {@link TrackReplay} and checks that every field comes back
+ * within the resolution of the format, including bearings across the whole
+ * circle and speeds above what a signed short holds. Exits with 1 on the
+ * first mismatch.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.gpstether.service.TrackRoundTrip
+ * </pre>
+ */
+public final class TrackRoundTrip {
+
+	private static final float[] BEARINGS = { 0f, 0.01f, 90f, 180f, 327.67f, 327.68f,
+			350f, 359.99f };
+	private static final float[] SPEEDS = { 0f, 12.5f, 327.68f, 500f };
+
+	private static int sFailures = 0;
+
+	private TrackRoundTrip() {
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final List<Location> fixes = new ArrayList<Location>();
+		// 2011-10-08T00:00:00Z plus whole seconds, NMEA keeps hundredths
+		long time = 1318032000000L;
+		for (final float bearing : BEARINGS) {
+			for (final float speed : SPEEDS) {
+				final Location l = new Location(LocationManager.GPS_PROVIDER);
+				l.setTime(time += 1000);
+				l.setLatitude(48.2081743 - fixes.size() * 0.0001);
+				l.setLongitude(-16.3738189 + fixes.size() * 0.0001);
+				l.setAltitude(171.3);
+				l.setSpeed(speed);
+				l.setBearing(bearing);
+				l.setAccuracy(4.5f);
+				fixes.add(l);
+			}
+		}
+		check("binary", TrackRecorder.FORMAT_BINARY, fixes, 1e-7, 0.01, 0.01f, 0.01f);
+		// NMEA: 4 decimals of minutes, altitude and course in tenths, speed in knots
+		check("nmea", TrackRecorder.FORMAT_NMEA, fixes, 2e-6, 0.1, 0.03f, 0.1f);
+		if (sFailures > 0) {
+			System.out.println(sFailures + " mismatches");
+			System.exit(1);
+		}
+		System.out.println("all fields round trip");
+	}
+
+	private static void check(final String name, final int format, final List<Location> fixes,
+			final double degrees, final double meters, final float speed, final float bearing)
+			throws Exception {
+		final File dir = File.createTempFile("roundtrip", "");
+		dir.delete();
+		dir.mkdirs();
+		try {
+			final TrackRecorder recorder = new TrackRecorder(dir, format, 1 << 20, Long.MAX_VALUE);
+			recorder.start();
+			for (final Location l : fixes) {
+				recorder.record(l, 9);
+			}
+			recorder.requestExit();
+			recorder.waitForExit(Long.MAX_VALUE);
+			final File[] files = dir.listFiles();
+			if (files.length != 1) {
+				fail(name, "expected one segment, got " + files.length);
+				return;
+			}
+			final List<Location> replayed = new ArrayList<Location>();
+			new TrackReplay(files[0], new LocationListener() {
+				public void onLocationChanged(final Location location) {
+					replayed.add(location);
+				}
+
+				public void onProviderDisabled(final String provider) {
+				}
+
+				public void onProviderEnabled(final String provider) {
+				}
+
+				public void onStatusChanged(final String provider, final int status,
+						final Bundle extras) {
+				}
+			}, 0, false).run();
+			if (replayed.size() != fixes.size()) {
+				fail(name, "recorded " + fixes.size() + " fixes, replayed " + replayed.size());
+				return;
+			}
+			for (int i = 0; i < fixes.size(); i++) {
+				final Location a = fixes.get(i), b = replayed.get(i);
+				final String fix = name + " fix " + i + " ";
+				if (a.getTime() != b.getTime())
+					fail(fix, "time " + a.getTime() + " came back as " + b.getTime());
+				if (Math.abs(a.getLatitude() - b.getLatitude()) > degrees)
+					fail(fix, "latitude " + a.getLatitude() + " came back as " + b.getLatitude());
+				if (Math.abs(a.getLongitude() - b.getLongitude()) > degrees)
+					fail(fix, "longitude " + a.getLongitude() + " came back as " + b.getLongitude());
+				if (Math.abs(a.getAltitude() - b.getAltitude()) > meters)
+					fail(fix, "altitude " + a.getAltitude() + " came back as " + b.getAltitude());
+				if (Math.abs(a.getSpeed() - b.getSpeed()) > speed)
+					fail(fix, "speed " + a.getSpeed() + " came back as " + b.getSpeed());
+				// 359.99 may come back as 0, what counts is the angle between them
+				final float d = Math.abs(a.getBearing() - b.getBearing()) % 360;
+				if (Math.min(d, 360 - d) > bearing)
+					fail(fix, "bearing " + a.getBearing() + " came back as " + b.getBearing());
+			}
+		} finally {
+			for (final File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static void fail(final String what, final String message) {
+		System.out.println(what + message);
+		sFailures++;
+	}
+}
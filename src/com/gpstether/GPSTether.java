@@ -20,7 +20,6 @@ package com.gpstether;
 
 import android.app.Activity;
 import android.os.Bundle;
-import android.os.Handler;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -33,15 +32,10 @@ public class GPSTether extends Activity implements Eula.OnEulaAgreedTo,
 
 	protected static final int CHECKSERVICE 	= 0;
 	private   static final int CLOSE_MENU 		= 0;
-	
-	private   static final int POLL_UPDATE_DELAY_MS 	= 1000;
 
 	private TextView mGPSStatus,mServiceStatus;
 	
 	private ServiceManager mServiceMan = null;
-	
-	private final Handler status_poll_handler = new Handler();
-	private Runnable status_poll_runnable = null;
 
 	/** Called when the activity is first created. */
 	@Override
@@ -58,7 +52,6 @@ public class GPSTether extends Activity implements Eula.OnEulaAgreedTo,
 	@Override
 	protected void onDestroy() {
 		Log.i(toString(), "====>Destroy");
-		tryRemovePollingCallbacks();
 		super.onDestroy();
 	}
 
@@ -92,10 +85,12 @@ public class GPSTether extends Activity implements Eula.OnEulaAgreedTo,
 		startServiceButton.setOnClickListener(mOCL);
 		stopServiceButton.setOnClickListener(mOCL);
 		
-		startServiceButton.setEnabled(false);
-		stopServiceButton.setEnabled(false);
+		// asked once, from then on the service tells us what changed
+		final boolean is_running = ServiceManager.findServiceInTaskList(this);
+		startServiceButton.setEnabled(!is_running);
+		stopServiceButton.setEnabled(is_running);
 
-		startPollingServiceUpdate();
+		mServiceMan.watchService();
 	}
 
 	@Override
@@ -111,7 +106,9 @@ public class GPSTether extends Activity implements Eula.OnEulaAgreedTo,
 	@Override
 	public void onPause() {
 		super.onPause();
-		tryRemovePollingCallbacks();
+		if (mServiceMan != null) {
+			mServiceMan.unwatchService();
+		}
 		Log.i(toString(), "====>Pause");
 	}
 
@@ -124,40 +121,6 @@ public class GPSTether extends Activity implements Eula.OnEulaAgreedTo,
 		}
 	}
 
-	private void startPollingServiceUpdate() {
-		if (status_poll_runnable == null) {
-			status_poll_runnable = new Runnable() {
-				public void run() {
-					final boolean is_running = ServiceManager
-							.findServiceInTaskList(GPSTether.this);
-					Log.i(getClass().toString(),
-					"Service Polling: "+ (is_running ? "=> is up and running":"=>is not running!"));
-
-					final Button stopServiceButton =  (Button) findViewById(R.id.stopservice);
-					final Button startServiceButton = (Button) findViewById(R.id.startservice);
-
-					startServiceButton.setEnabled(!is_running);
-					stopServiceButton.setEnabled(is_running);
-
-					status_poll_handler.postDelayed(this,POLL_UPDATE_DELAY_MS);
-				}
-			};
-		}
-		// kick off a status poll for the first time!
-		status_poll_handler.postDelayed(status_poll_runnable,POLL_UPDATE_DELAY_MS);
-	}
-
-	private void tryRemovePollingCallbacks() {
-		if (status_poll_handler != null && status_poll_runnable != null) {
-			Log.d(getClass().toString(),
-				"tryRemovePollingCallbacks() => remove callbacks gets called next!");
-			status_poll_handler.removeCallbacks(status_poll_runnable);
-		} else {
-			Log.d(getClass().toString(),
-				"tryRemovePollingCallbacks() => nothing to remove!");
-		}
-	}
-
 	@Override
 	public void updateGPSStatus(final String status) {
 		if (status != null) {
@@ -166,9 +129,15 @@ public class GPSTether extends Activity implements Eula.OnEulaAgreedTo,
 	}
 
 	@Override
-	public void updateServiceStatus(final String status) {
-		if (status != null) {
-			mServiceStatus.setText(status);
+	public void updateServiceState(final boolean running, final int port,
+			final int clients, final boolean gpsOnline) {
+		((Button) findViewById(R.id.startservice)).setEnabled(!running);
+		((Button) findViewById(R.id.stopservice)).setEnabled(running);
+		if (running) {
+			mServiceStatus.setText(getString(R.string.service_state_running, port, clients,
+					getString(gpsOnline ? R.string.gps_online : R.string.gps_offline)));
+		} else {
+			mServiceStatus.setText(R.string.service_state_stopped);
 		}
 	}
 
@@ -1,6 +1,7 @@
 package com.gpstether;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.ActivityManager;
 import android.app.ActivityManager.RunningServiceInfo;
@@ -10,11 +11,13 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.gpstether.service.Constants;
+import com.gpstether.service.GpsFix;
 import com.gpstether.service.ITetherService;
 import com.gpstether.service.ITetherServiceCallback;
 
@@ -31,7 +34,7 @@ public final class ServiceManager {
 				final IBinder boundService) {
 			tetherService = ITetherService.Stub.asInterface(boundService);
 			try {
-				tetherService.registerCallback(mCallback);
+				tetherService.registerFixCallback(mCallback, Constants.UI_FIX_MS, false);
 			} catch (final RemoteException e) {
 				e.printStackTrace();
 			}
@@ -47,7 +50,12 @@ public final class ServiceManager {
 			}
 			tetherService = null;
 			Log.d(toString(), "onServiceDisconnected");
-			updateServiceStatus(mStatusIf);
+			// the service died and cannot tell us, the binding brings it back
+			// to us if it is started again
+			started = false;
+			if (mStatusIf != null) {
+				mStatusIf.updateServiceState(false, -1, 0, false);
+			}
 		}
 
 		public void SetUpdateStatusIf(final UpdateStatus statusIf) {
@@ -58,7 +66,8 @@ public final class ServiceManager {
 	/********************************************************************************************************/
 	private tetherServiceConnection conn;
 	protected static String className = "com.gpstether.service.TetherService";
-	protected static final int GPS_MSG = 0;
+	/** Fixes reach the UI at most once per frame, about 60 a second. */
+	protected static final long UI_FRAME_MS = 16;
 	protected static String packageNameSpace = "com.gpstether";
 
 	private final Context mCtx;
@@ -71,7 +80,8 @@ public final class ServiceManager {
 	public interface UpdateStatus {
 		public void updateGPSStatus(String status);
 
-		public void updateServiceStatus(String status);
+		/** Pushed by the service whenever one of the values changes. */
+		public void updateServiceState(boolean running, int port, int clients, boolean gpsOnline);
 	}
 	
 	public static boolean findServiceInTaskList(final Context act) {
@@ -100,24 +110,58 @@ public final class ServiceManager {
 		 * the UI, we need to use a Handler to hop over there.
 		 */
 		public void gpsChanged(final String str) {
-			mHandler.sendMessage(mHandler.obtainMessage(ServiceManager.GPS_MSG, str));
+			postFix(str);
+		}
+
+		public void fixChanged(final GpsFix fix) {
+			postFix(fix);
+		}
+
+		public void statusChanged(final boolean running, final int port, final int clients,
+				final boolean gpsOnline) {
+			mHandler.post(new Runnable() {
+				public void run() {
+					// a service we did not start ourselves can be stopped too
+					started = running;
+					((UpdateStatus) mCtx).updateServiceState(running, port, clients, gpsOnline);
+				}
+			});
 		}
 	};
 
-	private final Handler mHandler = new Handler() {
-		@Override
-		public void handleMessage(final Message msg) {
-			switch (msg.what) {
-			case GPS_MSG:
-				final String msg_data = (String) msg.obj;
-				((UpdateStatus) mCtx).updateGPSStatus(msg_data);
-				break;
-			default:
-				super.handleMessage(msg);
+	private final Handler mHandler = new Handler();
+
+	/**
+	 * The newest fix the UI has not shown yet. A fix that comes in before
+	 * the UI got to the one before simply replaces it, so the main thread
+	 * never works through a queue of stale fixes.
+	 */
+	private final AtomicReference<Object> mPendingFix = new AtomicReference<Object>();
+
+	private final Runnable mShowFix = new Runnable() {
+		public void run() {
+			final Object fix = mPendingFix.getAndSet(null);
+			if (fix != null) {
+				// the text is only made here, for the fixes the UI shows
+				((UpdateStatus) mCtx).updateGPSStatus(fix.toString());
 			}
 		}
 	};
 
+	/** Called on binder threads, schedules a refresh for the next frame if none is. */
+	private void postFix(final Object fix) {
+		if (mPendingFix.getAndSet(fix) == null) {
+			final long now = SystemClock.uptimeMillis();
+			mHandler.postAtTime(mShowFix, now - now % UI_FRAME_MS + UI_FRAME_MS);
+		}
+	}
+
+	/** Drops a fix still waiting, so it cannot overwrite the status after a stop. */
+	private void cancelFix() {
+		mHandler.removeCallbacks(mShowFix);
+		mPendingFix.set(null);
+	}
+
 	public ServiceManager(final Context ctx) {
 		mCtx = ctx;
 	}
@@ -127,11 +171,11 @@ public final class ServiceManager {
 			conn = new tetherServiceConnection();
 			conn.SetUpdateStatusIf((UpdateStatus) mCtx);
 
-			mCtx.bindService(createServiceIntent(), conn,
-					Context.BIND_AUTO_CREATE);
+			// no BIND_AUTO_CREATE: binding never starts the service, we are
+			// connected whenever it runs and hear about its state from it
+			mCtx.bindService(createServiceIntent(), conn, 0);
 
 			Log.d(ServiceManager.this.toString(), "bindService()");
-			updateServiceStatus((UpdateStatus) mCtx);
 			return true;
 		}
 		return false;
@@ -149,17 +193,28 @@ public final class ServiceManager {
 		unbindActFromService();
 	}
 
+	/**
+	 * Connects to the service if it runs or once it is started, from then on
+	 * its state is pushed to {@link UpdateStatus#updateServiceState}.
+	 */
+	public void watchService() {
+		bindActToService();
+	}
+
+	/** Stops listening to the service, it keeps running. */
+	public void unwatchService() {
+		unbindActFromService();
+	}
+
 	public boolean StartService() {
 		if (!started) {
 			// first start the service!
 			mCtx.startService(createServiceIntent());
 			Log.d(ServiceManager.this.toString(), "startService()");
 			started = true;
-			updateServiceStatus((UpdateStatus) mCtx);
 		}
-		if (!bindActToService()) {
-			Toast.makeText(mCtx, "Service could not be bound!",
-					Toast.LENGTH_SHORT).show();
+		if (conn == null) {
+			bindActToService();
 		}
 		if (conn != null && started) {
 			Toast.makeText(mCtx, "Service started and bound !",
@@ -171,6 +226,7 @@ public final class ServiceManager {
 		return started;
 	}
 
+	/** Stops the service and goes on watching, in case something starts it again. */
 	public void StopService() {
 		// first unbind client activity from the service!
 		unbindActFromService();
@@ -182,6 +238,8 @@ public final class ServiceManager {
 			mCtx.stopService(createServiceIntent());
 			Log.d(ServiceManager.this.toString(), "stopService()");
 			started = false;
+			// unbound already, the service cannot tell us anymore
+			((UpdateStatus) mCtx).updateServiceState(false, -1, 0, false);
 		}
 		Toast notification = null;
 		if (conn == null && !started) {
@@ -200,29 +258,26 @@ public final class ServiceManager {
 					Toast.LENGTH_LONG);
 		}
 		notification.show();
-		updateServiceStatus((UpdateStatus) mCtx);
+		// without BIND_AUTO_CREATE this does not start it again
+		bindActToService();
 	};
 
 	private boolean unbindActFromService() {
 		if (mCtx != null && conn != null) {
+			if (tetherService != null) {
+				// otherwise the service keeps calling us after the unbind
+				try {
+					tetherService.unregisterCallback(mCallback);
+				} catch (final RemoteException e) {
+					e.printStackTrace();
+				}
+			}
 			mCtx.unbindService(conn);
 			conn = null;
+			cancelFix();
 			Log.d(ServiceManager.this.toString(), "unbindActFromService()");
 			return true;
 		}
 		return false;
 	}
-
-	private void updateServiceStatus(final UpdateStatus act) {
-		if (act == null) {
-			Log.e(toString(), "Error: update status interface is null");
-			return;
-		}
-		
-		final String bindStatus  = conn == null ? "unbound" : "bound";
-		final String startStatus = started ? "started" : "not started";
-		final String statusText  = "Service status: " + bindStatus + "," + startStatus;
-		
-		act.updateServiceStatus(statusText);
-	}
 }
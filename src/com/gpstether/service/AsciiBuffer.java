@@ -0,0 +1,239 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable ASCII byte buffer with allocation free number formatting. It keeps
+ * a running XOR of everything appended since {@link #startChecksum()}, which
+ * is exactly the NMEA sentence checksum.
+ */
+public class AsciiBuffer {
+
+	private static final long[] POW10 = { 1L, 10L, 100L, 1000L, 10000L,
+			100000L, 1000000L, 10000000L, 100000000L, 1000000000L };
+	static final long MS_PER_DAY = 86400000L;
+
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6',
+			'7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+	private byte[] mBuf;
+	private int mLen = 0;
+	private int mSum = 0;
+
+	public AsciiBuffer(final int capacity) {
+		mBuf = new byte[Math.max(16, capacity)];
+	}
+
+	public void reset() {
+		mLen = 0;
+		mSum = 0;
+	}
+
+	public int length() {
+		return mLen;
+	}
+
+	/** Drops everything after the first len bytes, the checksum is not rewound. */
+	public void setLength(final int len) {
+		if (len < mLen) {
+			mLen = len;
+		}
+	}
+
+	/** The backing array, valid from 0 to {@link #length()}. */
+	public byte[] array() {
+		return mBuf;
+	}
+
+	public void startChecksum() {
+		mSum = 0;
+	}
+
+	public int checksum() {
+		return mSum & 0xff;
+	}
+
+	public AsciiBuffer append(final char c) {
+		ensure(1);
+		put((byte) c);
+		return this;
+	}
+
+	public AsciiBuffer append(final String str) {
+		final int n = str.length();
+		ensure(n);
+		for (int i = 0; i < n; i++) {
+			put((byte) str.charAt(i));
+		}
+		return this;
+	}
+
+	public AsciiBuffer append(final byte[] src, final int off, final int len) {
+		ensure(len);
+		for (int i = off; i < off + len; i++) {
+			put(src[i]);
+		}
+		return this;
+	}
+
+	/** Appends bytes of src by absolute index, its position is left alone. */
+	public AsciiBuffer append(final ByteBuffer src, final int off, final int len) {
+		ensure(len);
+		for (int i = off; i < off + len; i++) {
+			put(src.get(i));
+		}
+		return this;
+	}
+
+	public AsciiBuffer append(final long value) {
+		return append(value, 1);
+	}
+
+	/** Appends a decimal integer, left padded with zeros to minDigits. */
+	public AsciiBuffer append(long value, final int minDigits) {
+		ensure(21 + minDigits);
+		if (value < 0) {
+			put((byte) '-');
+			if (value == Long.MIN_VALUE) {
+				// cannot be negated, never a sensible fix value anyway
+				return append("9223372036854775808");
+			}
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value / 10; v != 0; v /= 10) {
+			digits++;
+		}
+		for (int i = digits; i < minDigits; i++) {
+			put((byte) '0');
+		}
+		int pos = mLen + digits;
+		final int end = pos;
+		do {
+			mBuf[--pos] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (pos > mLen);
+		for (int i = mLen; i < end; i++) {
+			mSum ^= mBuf[i];
+		}
+		mLen = end;
+		return this;
+	}
+
+	/**
+	 * Appends value rounded to a fixed number of decimals (at most 9), e.g.
+	 * appendFixed(280.25, 1) gives "280.3". NaN and infinity append nothing.
+	 */
+	public AsciiBuffer appendFixed(double value, final int decimals) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return this;
+		final long scale = POW10[decimals];
+		if (value < 0) {
+			value = -value;
+			// do not print "-0.0" for values that round to zero
+			if (Math.round(value * scale) != 0) {
+				append('-');
+			}
+		}
+		final long scaled = Math.round(value * scale);
+		append(scaled / scale);
+		if (decimals > 0) {
+			append('.');
+			append(scaled % scale, decimals);
+		}
+		return this;
+	}
+
+	/** Appends a UTC time in ISO 8601 form, e.g. "2011-10-07T15:06:40.120Z". */
+	public AsciiBuffer appendIsoTime(final long time) {
+		long day = time / MS_PER_DAY;
+		long tod = time % MS_PER_DAY;
+		if (tod < 0) {
+			day--;
+			tod += MS_PER_DAY;
+		}
+		final int date = civilDate(day);
+		append(date / 10000, 4).append('-').append(date / 100 % 100, 2)
+			.append('-').append(date % 100, 2).append('T')
+			.append(tod / 3600000, 2).append(':').append(tod / 60000 % 60, 2)
+			.append(':').append(tod / 1000 % 60, 2).append('.')
+			.append(tod % 1000, 3).append('Z');
+		return this;
+	}
+
+	/**
+	 * Days since 1970-01-01 to the civil date packed as yyyymmdd, see
+	 * H. Hinnant's civil_from_days.
+	 */
+	static int civilDate(final long days) {
+		final long z = days + 719468;
+		final long era = (z >= 0 ? z : z - 146096) / 146097;
+		final long doe = z - era * 146097;
+		final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		final long mp = (5 * doy + 2) / 153;
+		final int d = (int) (doy - (153 * mp + 2) / 5 + 1);
+		final int m = (int) (mp < 10 ? mp + 3 : mp - 9);
+		final long y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+		return (int) y * 10000 + m * 100 + d;
+	}
+
+	/** The inverse of {@link #civilDate(long)}, H. Hinnant's days_from_civil. */
+	static long civilDays(final int year, final int month, final int day) {
+		final long y = month <= 2 ? year - 1 : year;
+		final long era = (y >= 0 ? y : y - 399) / 400;
+		final long yoe = y - era * 400;
+		final long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		final long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	/** Appends the two digit upper case hex form of the low byte of value. */
+	public AsciiBuffer appendHex2(final int value) {
+		ensure(2);
+		put(HEX[(value >> 4) & 0xf]);
+		put(HEX[value & 0xf]);
+		return this;
+	}
+
+	private void put(final byte b) {
+		mBuf[mLen++] = b;
+		mSum ^= b;
+	}
+
+	private void ensure(final int n) {
+		if (mLen + n > mBuf.length) {
+			// only ever happens while warming up
+			final byte[] buf = new byte[Math.max(mBuf.length * 2, mLen + n)];
+			System.arraycopy(mBuf, 0, buf, 0, mLen);
+			mBuf = buf;
+		}
+	}
+
+	@Override
+	public String toString() {
+		final char[] chars = new char[mLen];
+		for (int i = 0; i < mLen; i++) {
+			chars[i] = (char) (mBuf[i] & 0xff);
+		}
+		return new String(chars);
+	}
+}
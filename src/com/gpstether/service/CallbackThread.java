@@ -19,245 +19,216 @@
 package com.gpstether.service;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
-import java.util.Iterator;
-import java.util.List;
-
-import android.location.GpsSatellite;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.location.GpsStatus;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class CallbackThread extends Thread implements LocationListener, GpsStatus.Listener {
 
 	private static final String MODE_3D = "3";
-	private static String satellites[] = new String[20];
 	
-	public boolean gps_online = false;
+	public volatile boolean gps_online = false;
 
 	private final RemoteCallbackList<ITetherServiceCallback> mCallbacks;
 
-	private ServerSocket mServerSocket = null;
+	private volatile SelectorLoop[] mLoops = null;
+	private volatile Thread[] mShardThreads = null;
+	private volatile GpsFrame mFrame = GpsFrame.EMPTY;
 	
-	private Location 		mLocation = null;
+	// replaced, never changed, on every fix
+	private volatile FixSnapshot mFix = FixSnapshot.EMPTY;
 	private LocationManager mLocManager = null;
+	// replaced, never changed, on every satellite status event
+	private volatile SatelliteSnapshot mSatellites = SatelliteSnapshot.EMPTY;
+	private GpsStatus mGpsStatus = null;
+	// recent fixes, written here only, read by anyone without locking
+	private final FixHistory mHistory = new FixHistory(Constants.FIX_HISTORY_SIZE);
+	private final Metrics mMetrics = new Metrics();
+	private final FixFusion mFusion = new FixFusion();
+	private StatusReporter mStatus = null;
+	private KalmanFilter mFilter = null;
+	private volatile TrackRecorder mRecorder = null;
+	private UdpNmeaSender mUdp = null;
+	private volatile RateController mRate = null;
+	// the thread the bound activities get their fixes from, null for this one
+	private Handler mFixHandler = null;
+	private final AtomicBoolean mFixPosted = new AtomicBoolean();
+	private final Runnable mSendFix = new Runnable() {
+		public void run() {
+			// fixes from now on post again
+			mFixPosted.set(false);
+			sendLocChangeToClient();
+		}
+	};
 	
-	private boolean mDone = false;
-	private boolean mTag = false;	
+	private volatile boolean mDone = false;
 		
 	private int  mServerPort    = -1;
-	private int  mTimeStampLow  =  0;
-	private int  mNumSatellites =  0;
-	
+	private int  mLoopCount     =  1;
+
+	// the fix before, location callback thread only
 	private long mDiffAgeData  =  0;
 	private long mTimeStampMS  = -1;
-	private long mTimeStampUp  =  0;
-
-	private float mRateOfClimb = 0;
-
 	private double mLastAltitude = 0.0;
 	
-	private final List<EchoThread> mThreadList = new ArrayList<EchoThread>();
 	// private UISync mUIInterface = null;
-	private final Object sat_lock = new Object();
+	private final NmeaEncoder mNmea = new NmeaEncoder(new AsciiBuffer(512));
+	// frame encoding, only used on the location callback thread
+	private final AsciiBuffer mFrameBuf = new AsciiBuffer(1024);
+	private final int[] mFrameEnds = new int[GpsFrame.PARTS];
+	private final JsonWriter mJson = new JsonWriter(mFrameBuf);
+	private final NmeaEncoder mFrameNmea = new NmeaEncoder(mFrameBuf);
+	private final UbxEncoder mFrameUbx = new UbxEncoder();
 
 	// public CallbackThread(final UISync uii, final int port) {
 	public CallbackThread(final int port, final LocationManager locMan,
 			final RemoteCallbackList<ITetherServiceCallback> cb) {
+		this(port, Constants.SELECTOR_LOOPS, locMan, cb);
+	}
+
+	/**
+	 * @param loops number of selector loops (threads) the clients are
+	 *        sharded across, at least one.
+	 */
+	public CallbackThread(final int port, final int loops, final LocationManager locMan,
+			final RemoteCallbackList<ITetherServiceCallback> cb) {
 		super();
 		mCallbacks = cb;
 		mLocManager = locMan;
 		mServerPort = port;
+		mLoopCount = Math.max(1, loops);
 	}
 
 	/** Returns GGA NMEA sentence generated from raw data. */
-	// $GPGGA,170834.00,4124.896300,N,08151.683800,W,1,05,1.5,280.2,M,-34.0,M,,,*75
-	// $GPGGA,104438.833,4301.1439,N,08803.0338,W,1,05,1.8,185.8,M,-34.2,M,0.0,0000*40
+	// $GPGGA,170834.00,4124.8963,N,08151.6838,W,1,05,1.5,280.2,M,,M,,*hh
 	public String genGPGGA() {
-		if (mLocation == null)
+		final FixSnapshot fix = mFix;
+		if (fix.location == null)
 			return new String();
-
-		// Start the NMEA position string
-		String mPosNMEA = "$GPGGA,";
-
-		final SimpleDateFormat formatter = new SimpleDateFormat("HHmmss.SS");
-		final Calendar now = GregorianCalendar.getInstance();
-		final long offset = now.getTime().getTimezoneOffset()*60000L;
-		now.setTimeInMillis(mLocation.getTime() + offset);
-		final String tempString = formatter.format(now.getTime());
-		mPosNMEA += tempString.substring(0, 9) + ",";
-		
-		mPosNMEA += genGPGGA_GPGLL_long_lat_descr();
-		mPosNMEA += "1," + mNumSatellites + ",";
-
-		// HDOP
-		mPosNMEA += "?,";
-		mPosNMEA += mLocation.getAltitude() + ",M,,M,,,";
-		mPosNMEA += "*" + NMEAChecksum(mPosNMEA) + Constants.COMMAND_END;
-
-		return mPosNMEA;
+		synchronized (mNmea) {
+			mNmea.getBuffer().reset();
+			prepareNmea(mNmea, fix.location, mSatellites);
+			mNmea.gga();
+			return mNmea.getBuffer().toString();
+		}
 	}
 
 	/** Returns GLL NMEA sentence generated from raw data. */
 	public String genGPGLL() {
-		if (mLocation == null)
+		final FixSnapshot fix = mFix;
+		if (fix.location == null)
 			return new String();
-
-		// Start the NMEA position string
-		String mPosNMEA = "$GPGLL,";
-		mPosNMEA += genGPGGA_GPGLL_long_lat_descr();
-		
-		final SimpleDateFormat formatter = new SimpleDateFormat("HHmmss.SS");
-		final Calendar now = GregorianCalendar.getInstance();
-		final long offset = now.getTime().getTimezoneOffset() * 60000l;
-		now.setTimeInMillis(mLocation.getTime() + offset);
-		final String tempString = formatter.format(now.getTime());
-		mPosNMEA += tempString.substring(0, 9) + ",A";
-
-		mPosNMEA += "*" + NMEAChecksum(mPosNMEA) + Constants.COMMAND_END;
-		return mPosNMEA;
+		synchronized (mNmea) {
+			mNmea.getBuffer().reset();
+			prepareNmea(mNmea, fix.location, mSatellites);
+			mNmea.gll();
+			return mNmea.getBuffer().toString();
+		}
 	}
 
 	/** Returns GSA NMEA sentence generated from raw data. */
 	public String genGPGSA() {
-
-		// Start the NMEA position string
-		String mPosNMEA = "$GPGSA,";
-
-		mPosNMEA += "A,";
-		if (mNumSatellites > 0 && mNumSatellites <= 2) {
-			mPosNMEA += "2";
-		} else if (mNumSatellites > 3) {
-			mPosNMEA += "3";
-		} else {
-			mPosNMEA += "0";
+		final FixSnapshot fix = mFix;
+		if (fix.location == null)
+			return new String();
+		synchronized (mNmea) {
+			mNmea.getBuffer().reset();
+			final SatelliteSnapshot sats = mSatellites;
+			prepareNmea(mNmea, fix.location, sats);
+			mNmea.gsa(sats);
+			return mNmea.getBuffer().toString();
 		}
+	}
 
-		for (int i = 0; i < 12; i++)
-			if (CallbackThread.satellites[i] != null) {
-				mPosNMEA += "," + CallbackThread.satellites[i];
-			} else {
-				mPosNMEA += ",";
-			}
-
-		final float pdop = mLocation.getExtras().getFloat("pdop");
-		final float hdop = mLocation.getExtras().getFloat("hdop");
-		final float vdop = mLocation.getExtras().getFloat("vdop");
-
-		mPosNMEA += "," + pdop;
-		mPosNMEA += "," + hdop;
-		mPosNMEA += "," + vdop;
-
-		mPosNMEA += "*" + NMEAChecksum(mPosNMEA) + Constants.COMMAND_END;
-
-		return mPosNMEA;
+	/** Returns the GSV NMEA sentences, four satellites each. */
+	public String genGPGSV() {
+		synchronized (mNmea) {
+			mNmea.getBuffer().reset();
+			mNmea.gsv(mSatellites);
+			return mNmea.getBuffer().toString();
+		}
 	}
 
 	/** Returns RMC NMEA sentence generated from raw data. */
-	// $GPRMC,081836.00,A,3751.65,S,14507.36,E,000.0,360.0,130998,011.3,E*62
-	// $GPRMC,104748.821,A,4301.1492,N,08803.0374,W,0.085048,102.36,010605,,*1A
-	// $GPRMC,104749.821,A,4301.1492,N,08803.0377,W,0.054215,74.60,010605,,*2D
+	// $GPRMC,081836.00,A,3751.6500,S,14507.3600,E,0.00,360.0,130998,,,A*hh
 	public String genGPRMC() {
-		if (mLocation == null)
+		final FixSnapshot fix = mFix;
+		if (fix.location == null)
 			return new String();
-
-		// Start the NMEA position string
-		String mPosNMEA = "$GPRMC,";
-
-		final double lat = mLocation.getLatitude();
-		final double lon = mLocation.getLongitude();
-		final float kmh = mLocation.getSpeed() * Constants.MPS_TO_KMPH;
-		final long time = mLocation.getTime();
-
-		SimpleDateFormat formatter = new SimpleDateFormat("HHmmss.SS");
-		final Calendar now = GregorianCalendar.getInstance();
-		final long offset = now.getTime().getTimezoneOffset() * 60000l;
-		now.setTimeInMillis(time + offset);
-		String tempString = formatter.format(now.getTime());
-		mPosNMEA += tempString.substring(0, 9) + ",";
-
-		mPosNMEA += "A,";
-
-		mPosNMEA += String.format("%02d", (int) Math.abs(lat));
-		double temp = Math.abs(lat) - (int) Math.abs(lat);
-		temp *= 60;
-		mPosNMEA += String.format("%02.4f,", temp);
-		if (lat > 0) {
-			mPosNMEA += "N,";
-		} else {
-			mPosNMEA += "S,";
+		synchronized (mNmea) {
+			mNmea.getBuffer().reset();
+			prepareNmea(mNmea, fix.location, mSatellites);
+			mNmea.rmc();
+			return mNmea.getBuffer().toString();
 		}
+	}
 
-		mPosNMEA += String.format("%03d", (int) Math.abs(lon));
-		temp = Math.abs(lon) - (int) Math.abs(lon);
-		temp *= 60;
-		mPosNMEA += String.format("%02.4f,", temp);
-		if (lon > 0) {
-			mPosNMEA += "E,";
+	/** Loads the fix into the (locked) encoder. */
+	private void prepareNmea(final NmeaEncoder nmea, final Location loc,
+			final SatelliteSnapshot sats) {
+		final Bundle extras = loc.getExtras();
+		nmea.setFix(loc.getTime(), loc.getLatitude(), loc.getLongitude(),
+				loc.getAltitude(), loc.getSpeed(), loc.getBearing(), loc.hasBearing());
+		if (extras != null) {
+			nmea.setSatellites(sats.usedCount, extras.getFloat("pdop"),
+					extras.getFloat("hdop"), extras.getFloat("vdop"));
 		} else {
-			mPosNMEA += "W,";
+			nmea.setSatellites(sats.usedCount, 0, 0, 0);
 		}
-
-		mPosNMEA += kmh + ",";
-
-		// Track made good
-		mPosNMEA += "?,";
-
-		formatter = new SimpleDateFormat("ddMMyy");
-		tempString = formatter.format(now.getTime());
-		mPosNMEA += tempString + ",";
-
-		// Magnetic variation, direction, FAA mode
-		mPosNMEA += "?,?,";
-		mPosNMEA += "*" + NMEAChecksum(mPosNMEA) + Constants.COMMAND_END;
-
-		return mPosNMEA;
 	}
 
+	/** Publishes the satellites of the latest status event as a new snapshot. */
 	private void getAllSatellites() {
-		final GpsStatus gps_status = mLocManager.getGpsStatus(null);
-		synchronized (sat_lock) {
-			final Iterator<GpsSatellite> sats = gps_status.getSatellites()
-					.iterator();
-			mNumSatellites = 0;
-			while (sats.hasNext()) {
-				final GpsSatellite temp = sats.next();
-				CallbackThread.satellites[mNumSatellites] = Integer
-						.toString(temp.getPrn());
-				mNumSatellites++;
-			}
-			sat_lock.notifyAll();
-		}
+		// the status object is handed back for reuse, only this thread touches it
+		mGpsStatus = mLocManager.getGpsStatus(mGpsStatus);
+		mSatellites = SatelliteSnapshot.of(mGpsStatus);
 	}
 
-	/**
-	 * Returns the current altitude in the form "A=f";
+	/*
+	 * The legacy gpsd replies below append straight into the reply buffer of
+	 * the asking client, so answering a command does not allocate.
 	 */
-	public String getAltitude() {
-		return ",A=" + mLocation.getAltitude();
+
+	/** Appends the current altitude in the form ",A=%f" (meters). */
+	public void appendAltitude(final AsciiBuffer b) {
+		final Location loc = mFix.location;
+		if (loc == null) {
+			b.append(",A=?");
+			return;
+		}
+		b.append(",A=").appendFixed(loc.getAltitude(), 3);
 	}
 
-	public String getBearing() {
-		return ",T=" + mLocation.getBearing();
+	/** Appends the track in the form ",T=%f" (degrees from true north). */
+	public void appendBearing(final AsciiBuffer b) {
+		final Location loc = mFix.location;
+		if (loc == null) {
+			b.append(",T=?");
+			return;
+		}
+		b.append(",T=").appendFixed(loc.getBearing(), 4);
 	}
 
-	public String getLastKnownLocation() {
-		if (mLocManager == null)
-			return ",V=?";
-		// 1 Meter per Second = 1.9438444924406 Knots
-		final Location location = mLocManager.getLastKnownLocation("gps");
-		return ",V=" + location.getSpeed() * Constants.M_TO_KNOTS; // in
+	/** Appends the speed in the form ",V=%f" (knots). */
+	public void appendSpeed(final AsciiBuffer b) {
+		final Location loc = mFix.location;
+		if (loc == null) {
+			b.append(",V=?");
+			return;
+		}
+		b.append(",V=").appendFixed(loc.getSpeed() * Constants.M_TO_KNOTS, 3);
 	}
 
 	/**
@@ -268,82 +239,231 @@ public class CallbackThread extends Thread implements LocationListener, GpsStatu
 	 * $--RMC,hhmmss.ss,A,llll.ll,a,yyyyy.yy,a,x.x,x.x,xxxx,x.x,a*hh<CR><LF>
 	 */
 
-	/* Returns Nav Information in RMC and GGA */
-	public String getNavInfo() {
-		if (mLocation == null)
-			return ",O=?";
+	/* Appends Nav Information in RMC and GGA */
+	public void appendNavInfo(final AsciiBuffer b) {
+		final ByteBuffer nav = mFrame.part(GpsFrame.NAV);
+		final int start = Constants.REPLY_START.length();
+		b.append(nav, start, nav.limit() - start - Constants.COMMAND_END.length());
+	}
+
+	/**
+	 * Appends the current position in the form ",P=%f %f"; numbers are in
+	 * degrees, latitude first.
+	 */
+	public void appendPosition(final AsciiBuffer b) {
+		final Location loc = mFix.location;
+		if (loc == null) {
+			b.append(",P=?");
+			return;
+		}
+		b.append(",P=").appendFixed(loc.getLatitude(), 6)
+		 .append(' ').appendFixed(loc.getLongitude(), 6);
+	}
+
+	/** Appends the rate of climb in the form ",U=%f" (meters per second). */
+	public void appendRateOfClimb(final AsciiBuffer b) {
+		b.append(",U=").appendFixed(mFix.climb, 3);
+	}
 
-		final double lat = mLocation.getLatitude();
-		final double lon = mLocation.getLongitude();
-		final float  kmh = mLocation.getSpeed() * Constants.MPS_TO_KMPH;
+	/** Returns RAW NMEA sentences */
+	public String getRawInfo() {
+		return mFrame.getRawInfo();
+	}
 
-		String ret = ",O=";
-		ret += mTag ? "GGA " : "RMC ";
-		mTag = !mTag;
+	public Metrics getMetrics() {
+		return mMetrics;
+	}
 
-		ret += mTimeStampUp + "." + mTimeStampLow + " 0.005 " + lat + " " + lon
-				+ " " + mLocation.getAltitude() + " ? ? "
-				+ mLocation.getBearing() + " " + kmh + " 0.000 ? ? ? "
-				+ CallbackThread.MODE_3D;
-		
-		return ret;
+	/** Fixes and client demand from now on go to controller as well. */
+	public void setRateController(final RateController controller) {
+		mRate = controller;
+	}
+
+	/** A client connected, left or changed what it streams. */
+	void onDemandChanged() {
+		if (mStatus != null) {
+			mStatus.setClients(mMetrics.getSessions().size());
+		}
+		final RateController rate = mRate;
+		if (rate != null) {
+			rate.onDemandChanged();
+		}
+	}
+
+	/** Reports port, clients and GPS state to the activity, set before start(). */
+	public void setStatusReporter(final StatusReporter status) {
+		mStatus = status;
 	}
 
 	/**
-	 * Returns the current position in the form "P=%f %f"; numbers are in
-	 * degrees, latitude first.
+	 * Builds and sends the fixes for the bound activities on the handler's
+	 * thread instead of the location thread, set before start(). A fix still
+	 * waiting there is replaced by the next one.
 	 */
-	public String getPosition() {
-		if (mLocManager == null)
-			return ",P=?";
-		final Location location = mLocManager.getLastKnownLocation("gps");
+	public void setFixHandler(final Handler handler) {
+		mFixHandler = handler;
+	}
 
-		if (location == null)
-			return ",P=?";
-		return ",P=" + location.getLatitude() + " " + location.getLongitude();
+	/** Sends the NMEA of every fix as a datagram too, set before start(). */
+	public void setUdpSender(final UdpNmeaSender sender) {
+		mUdp = sender;
 	}
 
-	public String getRateOfClimb() {
-		return "U=" + mRateOfClimb;
+	/**
+	 * Smooths position, speed, track and climb of the fixes before they go
+	 * out, set before start(). Without a filter they are passed on as is.
+	 */
+	public void setFilter(final KalmanFilter filter) {
+		mFilter = filter;
 	}
 
-	/** Returns RAW NMEA sentences */
-	public String getRawInfo() {
-		String temp;
-		temp = genGPGSA() + genGPGGA() + genGPGLL() + genGPRMC();
+	/** Every fix from now on also goes to recorder, null stops recording. */
+	public void setRecorder(final TrackRecorder recorder) {
+		mRecorder = recorder;
+	}
 
-		return temp;
+	/** The last {@link Constants#FIX_HISTORY_SIZE} fixes. */
+	public FixHistory getHistory() {
+		return mHistory;
 	}
 
-	/** Returns GGA NMEA sentence generated from raw data. */
-	public String getUTCTime() {
-		if (mLocation == null)
-			return new String();
+	/** The latest encoded output, shared by all clients. */
+	public GpsFrame getFrame() {
+		return mFrame;
+	}
 
-		String ret = ",D=";
+	/**
+	 * Encodes the current fix once for all clients and publishes it as a new
+	 * immutable frame. Only called from the location callback thread.
+	 */
+	private void renderFrame(final boolean newFix) {
+		final FixSnapshot fix = mFix;
+		final Location loc = fix.location;
+		if (loc == null)
+			return;
+		final long start = System.nanoTime();
+		final GpsFrame last = mFrame;
+		final AsciiBuffer b = mFrameBuf;
+		final int[] ends = mFrameEnds;
+		final SatelliteSnapshot sats = mSatellites;
+
+		b.reset();
+		b.append(Constants.REPLY_START).append(",O=").append(fix.tag ? "GGA " : "RMC ");
+		appendTimeStamp(b, fix);
+		b.append(" 0.005 ").appendFixed(loc.getLatitude(), 6)
+		 .append(' ').appendFixed(loc.getLongitude(), 6)
+		 .append(' ').appendFixed(loc.getAltitude(), 2).append(" ? ? ")
+		 .appendFixed(loc.getBearing(), 4)
+		 .append(' ').appendFixed(loc.getSpeed() * Constants.MPS_TO_KMPH, 3)
+		 .append(" 0.000 ? ? ? ").append(CallbackThread.MODE_3D)
+		 .append(Constants.COMMAND_END);
+		ends[GpsFrame.NAV] = b.length();
+
+		b.append(",X=");
+		appendTimeStamp(b, fix);
+		ends[GpsFrame.XMODE] = b.length();
+
+		writeTpv(mJson, fix);
+		b.append(Constants.COMMAND_END);
+		ends[GpsFrame.TPV] = b.length();
+
+		writeSky(mJson, loc, sats);
+		b.append(Constants.COMMAND_END);
+		ends[GpsFrame.SKY] = b.length();
+
+		prepareNmea(mFrameNmea, loc, sats);
+		mFrameNmea.gsa(sats);
+		mFrameNmea.gsv(sats);
+		mFrameNmea.gga();
+		mFrameNmea.gll();
+		mFrameNmea.rmc();
+		ends[GpsFrame.RAW] = b.length();
+
+		// climb is positive going up, velD the other way round
+		final ByteBuffer pvt = mFrameUbx.navPvt(loc, sats.usedCount, -fix.climb);
+		b.append(pvt, 0, pvt.limit());
+		ends[GpsFrame.UBX_PVT] = b.length();
+
+		final ByteBuffer sat = mFrameUbx.navSat(loc.getTime(), sats);
+		b.append(sat, 0, sat.limit());
+		ends[GpsFrame.UBX_SAT] = b.length();
+
+		// the frame of a fix carries its sequence number
+		mFrame = new GpsFrame(last.version + 1, fix.seq,
+				newFix ? last.satSeq : last.satSeq + 1, start, b, ends);
+		mMetrics.encodeUs.record((System.nanoTime() - start) / 1000);
+		if (newFix) {
+			mMetrics.fixAgeMs.record(System.currentTimeMillis() - loc.getTime());
+		}
+	}
 
-		final long time = mLocation.getTime(); // This is the correct way to do it.
-		final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'");
-		final Calendar now = GregorianCalendar.getInstance();
-		final long offset = now.getTime().getTimezoneOffset() * 60000l;
-		now.setTimeInMillis(time + offset);
-		ret += formatter.format(now.getTime());
-		ret += Constants.COMMAND_END;
+	private static void appendTimeStamp(final AsciiBuffer b, final FixSnapshot fix) {
+		b.append(fix.timeSec).append('.').append(fix.timeCs, 2);
+	}
 
-		return ret;
+	// {"class":"TPV","device":"android","mode":3,"time":"2011-10-07T15:06:40.120Z",...}
+	private void writeTpv(final JsonWriter w, final FixSnapshot fix) {
+		final Location loc = fix.location;
+		w.beginObject()
+		 .name("class").value("TPV")
+		 .name("device").value(Constants.JSON_DEVICE)
+		 .name("mode").value(loc.hasAltitude() ? 3 : 2)
+		 .name("time").timeValue(loc.getTime())
+		 .name("ept").value(0.005, 3)
+		 .name("lat").value(loc.getLatitude(), 9)
+		 .name("lon").value(loc.getLongitude(), 9);
+		if (loc.hasAltitude()) {
+			w.name("alt").value(loc.getAltitude(), 3);
+		}
+		if (loc.hasAccuracy()) {
+			w.name("eph").value(loc.getAccuracy(), 3);
+		}
+		w.name("track").value(loc.getBearing(), 4)
+		 .name("speed").value(loc.getSpeed(), 3)
+		 .name("climb").value(fix.climb, 3)
+		 .endObject();
 	}
 
-	String NMEAChecksum(final String sentence) {
-		// Calculate checksum...
-		char cksum = 0;
+	// {"class":"SKY","device":"android","hdop":1.3,"satellites":[{"PRN":4,"el":37,"az":110,"ss":41,"used":true},...]}
+	private void writeSky(final JsonWriter w, final Location loc,
+			final SatelliteSnapshot sats) {
+		w.beginObject()
+		 .name("class").value("SKY")
+		 .name("device").value(Constants.JSON_DEVICE)
+		 .name("time").timeValue(loc.getTime());
+		final Bundle extras = loc.getExtras();
+		if (extras != null) {
+			writeDop(w, "hdop", extras.getFloat("hdop"));
+			writeDop(w, "vdop", extras.getFloat("vdop"));
+			writeDop(w, "pdop", extras.getFloat("pdop"));
+		}
+		w.name("satellites").beginArray();
+		for (int i = 0; i < sats.count; i++) {
+			w.beginObject()
+			 .name("PRN").value(sats.prn[i])
+			 .name("el").value(sats.elevation[i], 0)
+			 .name("az").value(sats.azimuth[i], 0)
+			 .name("ss").value(sats.snr[i], 0)
+			 .name("used").value(sats.used[i])
+			 .endObject();
+		}
+		w.endArray().endObject();
+	}
 
-		for (int count = 0; count < sentence.length(); count++) {
-			if (sentence.charAt(count) != '$') {
-				cksum = (char) (cksum ^ sentence.charAt(count));
-			}
+	private static void writeDop(final JsonWriter w, final String name, final float dop) {
+		if (dop > 0) {
+			w.name(name).value(dop, 2);
 		}
-		return Integer.toString((cksum & 0xff) + 0x100, 16 /* radix */)
-				.substring(1).toUpperCase();
+	}
+
+	/** Appends the UTC time of the fix in the form ",D=yyyy-mm-ddThh:mm:ss.sssZ". */
+	public void appendUTCTime(final AsciiBuffer b) {
+		final Location loc = mFix.location;
+		if (loc == null) {
+			b.append(",D=?");
+			return;
+		}
+		b.append(",D=").appendIsoTime(loc.getTime());
 	}
 
 	@Override
@@ -352,15 +472,18 @@ public class CallbackThread extends Thread implements LocationListener, GpsStatu
 			return;
 		switch (event) {
 		case GpsStatus.GPS_EVENT_STARTED:
-			gps_online = true;
+			setGpsOnline(true);
 			break;
 		case GpsStatus.GPS_EVENT_STOPPED:
-			gps_online = false;
+			setGpsOnline(false);
 			break;
 		case GpsStatus.GPS_EVENT_FIRST_FIX:
 			break;
 		case GpsStatus.GPS_EVENT_SATELLITE_STATUS:
 			getAllSatellites();
+			renderFrame(false);
+			// watchers get the new SKY without waiting for the next fix
+			publishFix();
 			break;
 		}
 	}
@@ -371,37 +494,91 @@ public class CallbackThread extends Thread implements LocationListener, GpsStatu
 	public void onLocationChanged(final Location location) {
 		if (location != null) {
 			Log.v("gpsd", "onLocationChanged callback was called!");
+			mMetrics.onFix(FixHistory.provider(location.getProvider()));
+
+			// GPS and network both report here, keep the better of the two
+			final boolean sameProvider = mFusion.sameProvider(location);
+			if (!mFusion.accept(location, SystemClock.elapsedRealtime())) {
+				Log.v("gpsd", "Fix of " + location.getProvider() + " dropped, we have a better one");
+				mMetrics.onFixRejected();
+				return;
+			}
 
-			if (mTimeStampMS != -1) {
-				// in meters per second
+			// in meters per second, nothing to derive from a fix of another provider
+			float climb = 0;
+			if (mTimeStampMS != -1 && sameProvider) {
 				mDiffAgeData = location.getTime() - mTimeStampMS;
-				mRateOfClimb = (float) (mLastAltitude - location.getAltitude())
+				mMetrics.fixIntervalMs.record(mDiffAgeData);
+				climb = (float) (location.getAltitude() - mLastAltitude)
 						* 1000.0f / mDiffAgeData;
 
 				if (!location.hasBearing()) {
-					final float bearing = mLocation.bearingTo(location);
-					mLocation.setBearing(bearing);
+					// the direction we moved in since the last fix
+					location.setBearing(mFix.location.bearingTo(location));
 				}
 				/*
 				 * if(location.hasSpeed()){ lastSpeed = location.getSpeed(); }
 				 * else { location.setSpeed(lastSpeed); }
 				 */
 			}
-			mLocation = location;
+			mLastAltitude = location.getAltitude();
+			// history and recording keep the fix as measured
+			mHistory.add(location);
+			if (!gps_online && LocationManager.GPS_PROVIDER.equals(location.getProvider())) {
+				// a GPS fix, whether or not the start event came
+				setGpsOnline(true);
+			}
+			final TrackRecorder recorder = mRecorder;
+			if (recorder != null) {
+				recorder.record(location, mSatellites.usedCount);
+			}
+			if (mFilter != null) {
+				mFilter.apply(location);
+				climb = mFilter.getClimb();
+			}
+			// from here on location must not change anymore
+			mFix = mFix.next(location, climb);
+			final RateController rate = mRate;
+			if (rate != null) {
+				rate.onFix(location);
+			}
 
 			mTimeStampMS = location.getTime();
-			mTimeStampUp = mTimeStampMS / 1000;
-			mTimeStampLow = (int) (mTimeStampMS % 1000) / 10;
-			mLastAltitude = location.getAltitude();
-			mLastAltitude = location.getAltitude();
 
-			sendLocChangeToClient();
+			renderFrame(true);
+			publishFix();
+			final Handler fixHandler = mFixHandler;
+			if (fixHandler == null) {
+				sendLocChangeToClient();
+			} else if (mFixPosted.compareAndSet(false, true)) {
+				fixHandler.post(mSendFix);
+			}
 		} else {
 			Log.d("gpsd", "onLocationChanged callback was called with NULL Location!!");
 		}
 	}
 
+	/** Wakes all selector loops so streaming clients get the new fix right away. */
+	private void publishFix() {
+		final SelectorLoop[] loops = mLoops;
+		if (loops != null) {
+			for (int i = 0; i < loops.length; i++) {
+				loops[i].onNewFix();
+			}
+		}
+	}
+
 	public void onProviderDisabled(final String provider) {
+		if (LocationManager.GPS_PROVIDER.equals(provider)) {
+			setGpsOnline(false);
+		}
+	}
+
+	private void setGpsOnline(final boolean online) {
+		gps_online = online;
+		if (mStatus != null) {
+			mStatus.setGpsOnline(online);
+		}
 	}
 
 	public void onProviderEnabled(final String provider) {
@@ -425,120 +602,175 @@ public class CallbackThread extends Thread implements LocationListener, GpsStatu
 	 *         only one of them (often HDOP); a value of 0.0 should be taken as
 	 *         an indication that the data is not available.
 	 */
-	public String printOutSatellites() {
-		return ",Q=" + mNumSatellites + " ? ? ? ? ? ";
+	public void appendSatellites(final AsciiBuffer b) {
+		b.append(",Q=").append(mSatellites.usedCount).append(" ? ? ? ? ? ");
 	}
 
+	/** Stops the server and waits at most {@link Constants#SHUTDOWN_MS} for it. */
 	public void requestExitAndWait() {
-		mDone = true;
-		// Unregister all callbacks.
-		mCallbacks.kill();
+		requestExit();
+		waitForExit(SystemClock.elapsedRealtime() + Constants.SHUTDOWN_MS);
+	}
 
-		for (int i = 0; i < mThreadList.size(); i++) {
-			mThreadList.get(i).requestExitAndWait();
-			Log.d(toString(), "Thread Nr " + i + 1 + " closed now!");
+	/**
+	 * Tells the loops to quit, they wake up at once and close their client
+	 * channels in parallel. Does not wait, see {@link #waitForExit(long)}.
+	 */
+	public void requestExit() {
+		mDone = true;
+		final SelectorLoop[] loops = mLoops;
+		if (loops != null) {
+			for (int i = 0; i < loops.length; i++) {
+				if (loops[i] != null) {
+					loops[i].requestExit();
+				}
+			}
 		}
-		// Tell the thread to quit
+	}
+
+	/**
+	 * Waits for the loops and this thread to stop, up to deadline in
+	 * {@link SystemClock#elapsedRealtime()} time, all of them together: a
+	 * stuck one does not hold up the service.
+	 *
+	 * @return false if some are still running
+	 */
+	public boolean waitForExit(final long deadline) {
 		try {
-			if (mServerSocket != null) {
-				mServerSocket.close();
+			final Thread[] threads = mShardThreads;
+			if (threads != null) {
+				for (int i = 0; i < threads.length; i++) {
+					if (threads[i] != null) {
+						threads[i].join(remaining(deadline));
+						Log.d(toString(), "Loop Nr " + (i + 1) + " closed now!");
+					}
+				}
 			}
-			this.join();
+			this.join(remaining(deadline));
 		} catch (final InterruptedException ex) {
 			// Ignore
-		} catch (final IOException e) {
-			Log.i(toString(), "Error on server socket close!");
-			e.printStackTrace();
 		}
+		if (isAlive()) {
+			Log.w(toString(), "Callback Thread still running at the deadline!");
+			return false;
+		}
+		return true;
+	}
+
+	/** Milliseconds left until deadline, at least 1 as join(0) waits forever. */
+	static long remaining(final long deadline) {
+		return Math.max(1, deadline - SystemClock.elapsedRealtime());
 	}
 
 	@Override
 	public void run() {
 		// first open the server socket!
 		Log.d(toString(), "Worker Thread Started!");
+		ServerSocketChannel server = null;
 		try {
-			mServerSocket = new ServerSocket(mServerPort);
-			mServerSocket.setSoTimeout(Constants.SOCKET_TIMEOUT); // send
-															  	  // timeout
-																  // ?!
+			server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.socket().bind(new InetSocketAddress(mServerPort));
+
+			final SelectorLoop[] loops = new SelectorLoop[mLoopCount];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new SelectorLoop(this);
+			}
+			loops[0].setServerChannel(server, loops);
+			if (mUdp != null && mUdp.open()) {
+				loops[0].setUdpSender(mUdp);
+			}
+			mLoops = loops;
 		} catch (final Exception e) {
 			Log.e("gpsd", "Error on Server Socket Connect!:");
 			e.printStackTrace();
+			if (server != null) {
+				try {
+					server.close();
+				} catch (final IOException ex) {
+					// Ignore
+				}
+			}
 			return;
 		}
 		Log.d(toString(), "Server Socket UP and Rolling!");
-		while (!mDone) {
-			Socket clientSocket = null;
-			try {
-				clientSocket = mServerSocket.accept();
-				clientSocket.setKeepAlive(true);
-			} catch (final SocketTimeoutException e) {
-				// Log.v("gpsd","Polling Clientport : "+mServerPort);
-				continue; // new client connect poll!!!
-			} catch (final IOException e) {
-				e.printStackTrace();
-				break;
+		if (mStatus != null) {
+			mStatus.setPort(server.socket().getLocalPort());
+		}
+
+		// loop 0 accepts and serves on this thread, the others get their own
+		final Thread[] threads = new Thread[mLoopCount - 1];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(mLoops[i + 1], "gpsd-loop-" + (i + 1));
+			threads[i].start();
+		}
+		mShardThreads = threads;
+		if (mDone) {
+			// exit was requested while we were setting up
+			for (int i = 0; i < mLoops.length; i++) {
+				mLoops[i].requestExit();
 			}
-			Log.d(toString(), "Client got connected on Port: " + mServerPort);
-			final EchoThread thread = new EchoThread(clientSocket, this);
-			mThreadList.add(thread);
-			thread.start();
+		}
+		mLoops[0].run();
+		if (mStatus != null) {
+			mStatus.setPort(-1);
 		}
 		Log.d(getClass().toString(), "Callback Thread Done!");
 	}
 
+	/**
+	 * Hands the current fix to the bound activities: a {@link GpsFix} to the
+	 * callbacks of registerFixCallback(), when their interval has passed, and
+	 * the Location string to the older ones. The fixes are built before the
+	 * callbacks are locked, the string only if some callback takes it.
+	 */
 	public void sendLocChangeToClient() {
-		Log.v(getClass().toString(),
-			"================Send Loc Change to Client called!============");
 		if (mCallbacks == null) {
 			Log.e(getClass().toString(), "Error: mCallbacks was null!");
 			return;
 		}
+		final FixSnapshot snapshot = mFix;
+		final Location loc = snapshot.location;
+		if (loc == null) {
+			Log.v(getClass().toString(),
+				"Error, ==> location == null, sendLocChangeToClient called to soon ?");
+			return;
+		}
+		final long now = SystemClock.elapsedRealtime();
+		// both share the satellite arrays, the one with them costs no more
+		final SatelliteSnapshot sats = mSatellites;
+		final GpsFix fix = new GpsFix(loc, snapshot.climb, sats, false);
+		final GpsFix fixWithSats = new GpsFix(loc, snapshot.climb, sats, true);
 
 		synchronized (mCallbacks) {
 			final int N = mCallbacks.beginBroadcast();
-			if (N > 0) { // its imortant to call finishBroadcast even if N == 0!
-				if (mLocation == null) {
-					Log.v(getClass().getClass().toString(),
-						"Error, ==> location == null, sendLocChangeToClient called to soon ?");
-					return;
-				}
-				final String send_str = mLocation.toString();
-				for (int i = 0; i < N; i++) {
-					try {
-						Log.v(toString(), "sending : " + send_str);
-						mCallbacks.getBroadcastItem(i).gpsChanged(send_str);
-					} catch (final RemoteException e) {
-						// The RemoteCallbackList will take care of removing
-						// the dead object for us.
-						Log.d(getClass().toString(), "RemoteException occured!");
+			String str = null;
+			for (int i = 0; i < N; i++) {
+				final ITetherServiceCallback cb = mCallbacks.getBroadcastItem(i);
+				final FixSubscription sub = (FixSubscription) mCallbacks.getBroadcastCookie(i);
+				try {
+					if (sub == null) {
+						if (str == null) {
+							str = loc.toString();
+						}
+						cb.gpsChanged(str);
+					} else if (sub.due(now)) {
+						cb.fixChanged(sub.satellites ? fixWithSats : fix);
 					}
+				} catch (final RemoteException e) {
+					// The RemoteCallbackList will take care of removing
+					// the dead object for us.
+					Log.d(getClass().toString(), "RemoteException occured!");
 				}
 			}
+			// its imortant to call finishBroadcast even if N == 0!
 			mCallbacks.finishBroadcast();
 		}
 	}
 
-	public String sendXMode(final boolean send_i) {
-		if (send_i)	return ",X=" + mTimeStampUp + "." + mTimeStampLow + ",I=Generic NMEA";
-					return ",X=" + mTimeStampUp + "." + mTimeStampLow;
-	}
-	
-	private String genGPGGA_GPGLL_long_lat_descr()
-	{	
-		final double lat = mLocation.getLatitude();
-		final double lon = mLocation.getLongitude();
-		
-		String ret =  String.format("%02d", (int) Math.abs(lat));
-			   ret += String.format("%02.4f,", 
-					   	(Math.abs(lat) - (int) Math.abs(lat))*60);
-			   ret += (lat > 0)?"N,":"S,";
-		
-			   ret += String.format("%03d", (int) Math.abs(lon));
-			   ret += String.format("%02.4f,", 
-					   (Math.abs(lon) - (int) Math.abs(lon))*60);
-			   ret += (lon > 0) ? "E,": "W,";
-		return ret;
+	public void appendXMode(final AsciiBuffer b, final boolean send_i) {
+		final ByteBuffer xmode = mFrame.part(GpsFrame.XMODE);
+		b.append(xmode, 0, xmode.limit());
+		if (send_i) b.append(",I=Generic NMEA");
 	}
-			
 }
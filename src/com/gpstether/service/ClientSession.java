@@ -0,0 +1,764 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+
+import android.util.Log;
+
+/**
+ * State of one connected gpsd client. Only ever touched by the
+ * {@link SelectorLoop} the client was assigned to, so it needs no locking.
+ * Works on any non-blocking channel; the selection key is null for sessions
+ * that are not registered with a selector (benchmarks, load tests).
+ */
+public class ClientSession {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// what a queue entry holds: a reply, a frame part or the last part of a frame
+	private static final byte REPLY 		= 0;
+	private static final byte FRAME_PART 	= 1;
+	private static final byte FRAME_END 	= 2;
+
+	public static final long NO_DEMAND 		= -1;
+
+	private final CallbackThread mCB;
+	private final ByteChannel mChannel;
+	private final GatheringByteChannel mGatherChannel;
+	private final SelectionKey mKey;
+
+	private final ByteBuffer mIn  = ByteBuffer.allocate(Constants.CLIENT_READ_BUFFER);
+
+	/*
+	 * Output queue: buffers waiting to be written, oldest at mHead. Frame parts
+	 * are the views shared by the whole loop, so only the position this client
+	 * got to is kept here and put back into the view before each write.
+	 */
+	private final ByteBuffer[] mQueue 	= new ByteBuffer[Constants.CLIENT_QUEUE_DEPTH];
+	private final int[] mQueuePos 		= new int[Constants.CLIENT_QUEUE_DEPTH];
+	private final ByteBuffer[] mGather 	= new ByteBuffer[Constants.CLIENT_QUEUE_DEPTH];
+	private final byte[] mQueueKind 	= new byte[Constants.CLIENT_QUEUE_DEPTH];
+	// GpsFrame.updateNanos of the frame a FRAME_END entry finishes
+	private final long[] mQueueUpdate 	= new long[Constants.CLIENT_QUEUE_DEPTH];
+	private int mHead 	= 0;
+	private int mQueued = 0;
+
+	// what to do when the client lags, see Constants.SLOW_*
+	private int mSlowPolicy 	= Constants.CLIENT_SLOW_POLICY;
+	// frames queued but not completely written, the lag of this client
+	private int mPendingFrames 	= 0;
+	private int mMaxLag 		= 0;
+	// the frame parts were last queued from, its views may still be in the queue
+	private GpsFrame mQueuedFrame 	= null;
+
+	// written by the loop, read by whoever asks for the metrics
+	private final int mId;
+	private volatile long mDroppedFrames 	= 0;
+	private volatile long mBytesWritten 	= 0;
+	private volatile long mFramesWritten 	= 0;
+	// the interval this client streams at, NO_DEMAND if it does not stream
+	private volatile long mDemandMs 		= NO_DEMAND;
+
+	// the command line being received and the replies to all lines of one read
+	private final byte[] mLine = new byte[Constants.CLIENT_READ_BUFFER];
+	private int mLineLen = 0;
+	private final AsciiBuffer mReply = new AsciiBuffer(Constants.CLIENT_REPLY_BUFFER);
+	private final JsonWriter mJson = new JsonWriter(mReply);
+	// reused for the replies unless the last ones are still queued
+	private final ByteBuffer mReplyOut = ByteBuffer.allocate(Constants.CLIENT_REPLY_BUFFER);
+	private boolean mReplyQueued = false;
+
+	private final byte[] mDevice = new byte[Constants.GPSD_DEVICE_NAME_MAX];
+	private int mDeviceLen = 0;
+
+	private boolean mClosed 		= false;
+	private boolean mLastCR 		= false;
+	private boolean mRawMode 		= false;
+	private boolean mUbxMode 		= false; // binary UBX instead of NMEA
+	private boolean mWatcherMode 	= false;
+	private boolean mXSend 			= false;
+	private boolean mJsonWatch 		= false;
+
+	private long mSentFixSeq 		= -1;
+	private long mSentVersion 		= -1;
+	private long mSentSatSeq 		= -1;
+	private long mLastSentMs 		=  0;
+	private long mMinIntervalMs 	= Constants.CLIENT_MIN_STREAM_MS;
+
+	public <C extends ByteChannel & GatheringByteChannel> ClientSession(
+			final C channel, final SelectionKey key, final CallbackThread cb) {
+		mChannel = channel; mGatherChannel = channel; mKey = key; mCB = cb;
+		mId = cb.getMetrics().onConnect(this);
+		cb.onDemandChanged();
+		final String name = Constants.GPSD_DEVICE_NAME;
+		for (int i = 0; i < name.length() && i < mDevice.length; i++) {
+			mDevice[mDeviceLen++] = (byte) name.charAt(i);
+		}
+	}
+
+	/*
+	 * every gpsd reply will start with the string "GPSD" followed by the
+	 * replies. Examples: query: "p\n" reply: "GPSD,P=36.000000 123.000000\r\n"
+	 * query: "d\n" reply: "GPSD,D=2002-11-16T02:45:05.12Z\r\n" query: "va\n"
+	 * reply: "GPSD,V=0.000000,A=37.900000\r\n"
+	 *
+	 * Parses the command line in one pass over its bytes and appends the reply
+	 * to b. Returns false for an unknown command, b then holds a partial reply.
+	 */
+	boolean appendReply(final byte[] cmd, final int len, final AsciiBuffer b) {
+		b.append(Constants.REPLY_START);
+
+		for (int idx = 0; idx < len; idx++) {
+			// commands are letters, this lower cases them and nothing else matches
+			switch (cmd[idx] | 0x20) {
+			case 'a': mCB.appendAltitude(b); 		break;
+			case 'p': mCB.appendPosition(b); 		break;
+			case 'o': mCB.appendNavInfo(b); 		break;
+			case 'd': mCB.appendUTCTime(b);		 	break;
+			case 'v': mCB.appendSpeed(b); 			break;
+			case 'u': mCB.appendRateOfClimb(b); 	break;
+			case 't': mCB.appendBearing(b); 		break;
+			case 'x': mCB.appendXMode(b, false); 	break;
+			case 'q': mCB.appendSatellites(b); 		break;
+			case 'e': b.append(",E=? ? ?"); 		break;
+			case 'i': b.append(",I=").append(mDevice, 0, mDeviceLen); break;
+			// * per client cycle: "c=0.5" streams at most every 0.5 seconds
+			case 'c':
+				if (idx + 1 < len && cmd[idx + 1] == '=') {
+					final int end = skip_number(cmd, idx + 2, len);
+					if (end == idx + 2)
+						return false; // unknown command!
+					mMinIntervalMs = parse_millis(cmd, idx + 2, end);
+					idx = end - 1;
+				}
+				b.append(",C=").appendFixed((mMinIntervalMs > 0 ? mMinIntervalMs
+						: Constants.GPS_UPDATE_MS_TH) / 1000.0, 3);
+				break;
+			// * we only have one device so this does nothing !
+			// * "f=name" renames it, the rest of the line is the new name
+			case 'f':
+				if (idx + 1 < len && cmd[idx + 1] == '=') {
+					mDeviceLen = Math.min(len - idx - 2, mDevice.length);
+					System.arraycopy(cmd, idx + 2, mDevice, 0, mDeviceLen);
+					idx = len;
+				}
+				b.append(",F=").append(mDevice, 0, mDeviceLen);
+				break;
+			// * "w", "w+", "w-", "w1", "w=0"... the bare letter toggles
+			case 'w':
+				switch (test_true_false_unknown(cmd, idx + 1, len, false)) {
+					case Constants.FALSE: mWatcherMode = false; b.append(",W=0"); break;
+					case Constants.TRUE:
+						mWatcherMode = true;
+						if (mXSend) {
+							b.append(",W=1");
+						} else {
+							mCB.appendXMode(b, true);
+							b.append(Constants.COMMAND_END).append(Constants.REPLY_START);
+						}
+						mXSend = true; break;
+					case Constants.UNKNOWN: return false; // unknown command!
+					default:
+						b.append(mWatcherMode ? ",W=0" : ",W=1"); mWatcherMode = !mWatcherMode;
+						break;
+				}
+				idx = skip_flag(cmd, idx + 1, len) - 1;
+				break;
+			// * same for "r", "r2" (super-raw) streams binary UBX instead of NMEA
+			case 'r': {
+				final int end = skip_flag(cmd, idx + 1, len);
+				final boolean binary = end > idx + 1 && cmd[end - 1] == '2';
+				switch (test_true_false_unknown(cmd, idx + 1, len, true)) {
+					case Constants.FALSE:
+						mRawMode = false; mUbxMode = false; b.append(",R=0"); break;
+					case Constants.TRUE:
+						mRawMode = !binary;
+						mUbxMode = binary;
+						if (mXSend) {
+							b.append(binary ? ",R=2" : ",R=1");
+						} else {
+							mCB.appendXMode(b, true);
+							b.append(Constants.COMMAND_END).append(Constants.REPLY_START);
+						}
+						mXSend = true; break;
+					case Constants.UNKNOWN: return false; // unknown command!
+					default:
+						b.append(mRawMode ? ",R=0" : ",R=1"); mRawMode = !mRawMode;
+						mUbxMode = false;
+						break;
+				}
+				idx = end - 1;
+				break;
+			}
+			default: return false; /* unknown !*/
+			}
+		}
+		return true;
+	}
+
+	private static int skip_number(final byte[] cmd, int i, final int len) {
+		while (i < len && (cmd[i] >= '0' && cmd[i] <= '9' || cmd[i] == '.'))
+			i++;
+		return i;
+	}
+
+	/** Seconds like "2", "0.5" or ".25" to milliseconds, finer digits are ignored. */
+	private static long parse_millis(final byte[] cmd, final int start, final int end) {
+		long secs = 0;
+		long millis = 0;
+		int scale = 100;
+		boolean point = false;
+		for (int i = start; i < end; i++) {
+			if (cmd[i] == '.') {
+				if (point)
+					break;
+				point = true;
+			} else if (!point) {
+				secs = Math.min(secs * 10 + cmd[i] - '0', Integer.MAX_VALUE);
+			} else if (scale > 0) {
+				millis += (cmd[i] - '0') * scale;
+				scale /= 10;
+			}
+		}
+		return secs * 1000 + millis;
+	}
+
+	/** Returns the index after the argument of a flag command ("=1", "+", ...). */
+	private static int skip_flag(final byte[] cmd, int i, final int len) {
+		if (i < len && cmd[i] == '=')
+			i++;
+		if (i < len && (cmd[i] == '+' || cmd[i] == '-' || cmd[i] >= '0' && cmd[i] <= '2'))
+			i++;
+		return i;
+	}
+
+	/**
+	 * Reads the argument of a flag command at i. Returns
+	 * {@link Constants#UNKNOWN} for a bad one and {@link Constants#TOGGLE}
+	 * when there is none.
+	 */
+	private static int test_true_false_unknown(final byte[] cmd, int i, final int len,
+			final boolean rb) {
+		final boolean eq = i < len && cmd[i] == '=';
+		if (eq)
+			i++;
+		if (i < len) switch (cmd[i]) {
+			case '0':
+			case '-': return Constants.FALSE;
+			case '2': return rb ? Constants.TRUE : Constants.UNKNOWN;
+			case '1':
+			case '+': return Constants.TRUE;
+		}
+		// a bare letter toggles, "w=" needs a value
+		return eq ? Constants.UNKNOWN : Constants.TOGGLE;
+	}
+
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * Reads whatever the client sent and answers every complete command line
+	 * in it. Lines may be split across reads or several may arrive in one;
+	 * the replies to all of them leave in a single write.
+	 */
+	public void onReadable() {
+		int n;
+		try {
+			n = mChannel.read(mIn);
+		} catch (final IOException e) {
+			n = -1;
+		}
+		if (n < 0) {
+			Log.v("gspd", "Client got disconnected");
+			close();
+			return;
+		}
+		final byte[] in = mIn.array();
+		final int end = mIn.position();
+		for (int i = 0; i < end && !mClosed; i++) {
+			final byte c = in[i];
+			if (c == '\n' || c == '\r') {
+				// "\r\n" terminates one line only, like BufferedReader.readLine()
+				if (!(c == '\n' && mLastCR)) {
+					onLine(mLine, mLineLen);
+					mLineLen = 0;
+				}
+				mLastCR = c == '\r';
+			} else {
+				mLastCR = false;
+				if (mLineLen < mLine.length) {
+					mLine[mLineLen++] = c;
+				}
+			}
+		}
+		mIn.clear();
+		sendReplies();
+		updateDemand();
+	}
+
+	private void updateDemand() {
+		final long demand = mWatcherMode || mRawMode || mJsonWatch || mUbxMode
+				? mMinIntervalMs : NO_DEMAND;
+		if (demand != mDemandMs) {
+			mDemandMs = demand;
+			mCB.onDemandChanged();
+		}
+	}
+
+	private void onLine(final byte[] line, final int len) {
+		if (len > 0 && line[0] == '?') {
+			onJsonCommands(new String(line, 0, len, ASCII));
+			return;
+		}
+		final int mark = mReply.length();
+		if (appendReply(line, len, mReply)) {
+			mReply.append(Constants.COMMAND_END);
+		} else {
+			mReply.setLength(mark);
+			Log.e(toString(), "Unknown Command: " + new String(line, 0, len, ASCII));
+		}
+	}
+
+	/**
+	 * Answers gpsd JSON protocol requests such as "?WATCH={"enable":true};",
+	 * several of them may share one line.
+	 */
+	private void onJsonCommands(final String line) {
+		int start = 0;
+		while (start < line.length()) {
+			int end = line.indexOf(';', start);
+			if (end < 0) {
+				end = line.length();
+			}
+			final String cmd = line.substring(start, end).trim();
+			start = end + 1;
+			if (cmd.length() == 0)
+				continue;
+
+			final int eq = cmd.indexOf('=');
+			final String name = eq < 0 ? cmd : cmd.substring(0, eq);
+			final String args = eq < 0 ? null : cmd.substring(eq + 1);
+			final JsonWriter w = mJson;
+			if (name.equals("?VERSION")) {
+				writeVersion(w);
+			} else if (name.equals("?DEVICES")) {
+				writeDevices(w);
+			} else if (name.equals("?WATCH")) {
+				if (args != null) {
+					final boolean enable = jsonFlag(args, "enable", true);
+					final boolean nmea = enable && jsonFlag(args, "nmea", false);
+					// "raw":2 is the binary device stream, UBX here
+					mUbxMode = enable && jsonInt(args, "raw", 0) >= 2;
+					mJsonWatch = enable && jsonFlag(args, "json", !nmea && !mUbxMode);
+					mRawMode = nmea && !mUbxMode;
+					writeDevices(w);
+					w.getBuffer().append(Constants.COMMAND_END);
+				}
+				w.beginObject()
+				 .name("class").value("WATCH")
+				 .name("enable").value(mJsonWatch || mRawMode || mUbxMode)
+				 .name("json").value(mJsonWatch)
+				 .name("nmea").value(mRawMode)
+				 .name("raw").value(mUbxMode ? 2 : 0)
+				 .name("scaled").value(false)
+				 .name("timing").value(false)
+				 .endObject();
+			} else if (name.equals("?METRICS")) {
+				mCB.getMetrics().writeJson(w);
+			} else if (name.equals("?POLL")) {
+				final GpsFrame frame = mCB.getFrame();
+				w.beginObject()
+				 .name("class").value("POLL")
+				 .name("time").timeValue(System.currentTimeMillis())
+				 .name("active").value(frame.fixSeq > 0 ? 1 : 0)
+				 .name("tpv").beginArray()
+				 .rawValue(frame.part(GpsFrame.TPV), 0, frame.part(GpsFrame.TPV).limit()
+						 - Constants.COMMAND_END.length())
+				 .endArray()
+				 .name("sky").beginArray()
+				 .rawValue(frame.part(GpsFrame.SKY), 0, frame.part(GpsFrame.SKY).limit()
+						 - Constants.COMMAND_END.length())
+				 .endArray()
+				 .endObject();
+			} else {
+				w.beginObject()
+				 .name("class").value("ERROR")
+				 .name("message").value("Unrecognized request '" + name.substring(1) + "'")
+				 .endObject();
+				Log.e(toString(), "Unknown Command: " + cmd);
+			}
+			w.getBuffer().append(Constants.COMMAND_END);
+		}
+	}
+
+	private static void writeVersion(final JsonWriter w) {
+		w.beginObject()
+		 .name("class").value("VERSION")
+		 .name("release").value(Constants.JSON_RELEASE)
+		 .name("rev").value(Constants.JSON_REV)
+		 .name("proto_major").value(Constants.JSON_PROTO_MAJOR)
+		 .name("proto_minor").value(Constants.JSON_PROTO_MINOR)
+		 .endObject();
+	}
+
+	private void writeDevices(final JsonWriter w) {
+		w.beginObject()
+		 .name("class").value("DEVICES")
+		 .name("devices").beginArray()
+		 .beginObject()
+		 .name("class").value("DEVICE")
+		 .name("path").value(Constants.JSON_DEVICE)
+		 .name("driver").value(Constants.JSON_DRIVER)
+		 .name("activated").timeValue(System.currentTimeMillis())
+		 .name("flags").value(1)
+		 .endObject()
+		 .endArray()
+		 .endObject();
+	}
+
+	/** Looks up a boolean member of a flat JSON object like {"enable":true}. */
+	private static boolean jsonFlag(final String json, final String key, final boolean def) {
+		final int k = json.indexOf("\"" + key + "\"");
+		if (k < 0)
+			return def;
+		int i = json.indexOf(':', k);
+		if (i < 0)
+			return def;
+		i++;
+		while (i < json.length() && json.charAt(i) == ' ')
+			i++;
+		if (json.startsWith("true", i))
+			return true;
+		if (json.startsWith("false", i))
+			return false;
+		return def;
+	}
+
+	/** Looks up a small non-negative integer member like {"raw":2}. */
+	private static int jsonInt(final String json, final String key, final int def) {
+		final int k = json.indexOf("\"" + key + "\"");
+		if (k < 0)
+			return def;
+		int i = json.indexOf(':', k);
+		if (i < 0)
+			return def;
+		i++;
+		while (i < json.length() && json.charAt(i) == ' ')
+			i++;
+		int value = 0;
+		final int start = i;
+		while (i < json.length() && Character.isDigit(json.charAt(i)) && i - start < 9)
+			value = value * 10 + json.charAt(i++) - '0';
+		return i > start ? value : def;
+	}
+
+	/**
+	 * Streams the parts of the shared frame this client watches and has not
+	 * seen yet: the O= record and TPV once per fix, SKY once per satellite
+	 * update, the NMEA block once per frame and the UBX NAV-PVT and NAV-SAT
+	 * messages like TPV and SKY. Nothing is copied, the views of the frame
+	 * go straight into the output queue.
+	 * 
+	 * @return 0, or the time the frame is due if the client rate limit holds it back.
+	 */
+	public long onFix(final GpsFrame.Views views, final long now) {
+		if (mClosed)
+			return 0;
+		final GpsFrame frame = views.frame;
+		// only a newer frame replaces what is queued: the views of the same
+		// one may be the entry being written and must not go in twice
+		if (mPendingFrames > 0 && mSlowPolicy == Constants.SLOW_LATEST_FIX
+				&& frame != mQueuedFrame && dropFrames(0, 0) > 0) {
+			// the newer frame replaces whatever was dropped, resend all of it
+			mSentFixSeq = mSentSatSeq = mSentVersion = -1;
+		}
+		final boolean newFix = frame.fixSeq != mSentFixSeq;
+		final boolean nav = mWatcherMode && newFix;
+		final boolean tpv = mJsonWatch && newFix;
+		final boolean sky = mJsonWatch && frame.satSeq != mSentSatSeq;
+		final boolean raw = mRawMode && frame.version != mSentVersion;
+		final boolean pvt = mUbxMode && newFix;
+		final boolean sat = mUbxMode && frame.satSeq != mSentSatSeq;
+		if (!nav && !tpv && !sky && !raw && !pvt && !sat)
+			return 0;
+		if (mMinIntervalMs > 0 && now - mLastSentMs < mMinIntervalMs)
+			return mLastSentMs + mMinIntervalMs;
+		mSentFixSeq = frame.fixSeq;
+		mSentSatSeq = frame.satSeq;
+		mSentVersion = frame.version;
+		mLastSentMs = now;
+
+		final int parts = (nav ? 1 : 0) + (sky ? 1 : 0) + (tpv ? 1 : 0) + (raw ? 1 : 0)
+				+ (pvt ? 1 : 0) + (sat ? 1 : 0);
+		if (mPendingFrames >= Constants.CLIENT_MAX_LAG_FRAMES
+				|| mQueued + parts > mQueue.length) {
+			// the client does not keep up, never block the loop for it
+			if (mSlowPolicy == Constants.SLOW_DISCONNECT) {
+				Log.d(toString(), "Client lags " + mPendingFrames + " frames, disconnected!");
+				close();
+				return 0;
+			}
+			dropFrames(parts, Constants.CLIENT_MAX_LAG_FRAMES - 1);
+			if (mQueued + parts > mQueue.length) {
+				Log.d(toString(), "Client too slow, frame dropped!");
+				mDroppedFrames++;
+				mCB.getMetrics().onDropped(1);
+				return 0;
+			}
+		}
+		int left = parts;
+		if (nav) {
+			enqueue(views.nav, --left == 0 ? FRAME_END : FRAME_PART);
+		}
+		if (sky) {
+			enqueue(views.sky, --left == 0 ? FRAME_END : FRAME_PART);
+		}
+		if (tpv) {
+			enqueue(views.tpv, --left == 0 ? FRAME_END : FRAME_PART);
+		}
+		if (raw) {
+			enqueue(views.raw, --left == 0 ? FRAME_END : FRAME_PART);
+		}
+		if (pvt) {
+			enqueue(views.pvt, --left == 0 ? FRAME_END : FRAME_PART);
+		}
+		if (sat) {
+			enqueue(views.sat, FRAME_END);
+		}
+		mQueueUpdate[(mHead + mQueued - 1) % mQueue.length] = frame.updateNanos;
+		mQueuedFrame = frame;
+		if (++mPendingFrames > mMaxLag) {
+			mMaxLag = mPendingFrames;
+		}
+		flush();
+		return 0;
+	}
+
+	/**
+	 * Drops queued frames the socket has not started on, oldest first, until
+	 * need entries are free and at most maxPending frames are left. Replies
+	 * and the entry being written are kept, so the stream stays line aligned.
+	 * 
+	 * @return the number of frames dropped.
+	 */
+	private int dropFrames(final int need, final int maxPending) {
+		final int n = mQueue.length;
+		int kept = 0;
+		int frames = 0;
+		boolean inFrame = false;
+		for (int i = 0; i < mQueued; i++) {
+			final int from = (mHead + i) % n;
+			final byte kind = mQueueKind[from];
+			final boolean started = i == 0 && mQueuePos[from] > 0;
+			final int left = kept + mQueued - i;
+			if (kind != REPLY && !started && (inFrame || n - left < need
+					|| mPendingFrames - frames > maxPending)) {
+				inFrame = kind == FRAME_PART;
+				if (kind == FRAME_END) {
+					frames++;
+				}
+				continue;
+			}
+			final int to = (mHead + kept++) % n;
+			mQueue[to] = mQueue[from];
+			mQueuePos[to] = mQueuePos[from];
+			mQueueKind[to] = kind;
+			mQueueUpdate[to] = mQueueUpdate[from];
+		}
+		for (int i = kept; i < mQueued; i++) {
+			mQueue[(mHead + i) % n] = null;
+		}
+		mQueued = kept;
+		mPendingFrames -= frames;
+		if (frames > 0) {
+			mDroppedFrames += frames;
+			mCB.getMetrics().onDropped(frames);
+		}
+		return frames;
+	}
+
+	/** Selects what happens when this client lags, one of Constants.SLOW_*. */
+	public void setSlowPolicy(final int policy) {
+		mSlowPolicy = policy;
+	}
+
+	/** Frames queued for this client but not completely written yet. */
+	public int getLag() {
+		return mPendingFrames;
+	}
+
+	/** The largest lag seen since the client connected. */
+	public int getMaxLag() {
+		return mMaxLag;
+	}
+
+	/** Frames this client lost because it did not keep up. */
+	public long getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/**
+	 * How often this client wants fixes in ms, 0 for every one, NO_DEMAND if
+	 * it only polls.
+	 */
+	public long getDemandMs() {
+		return mDemandMs;
+	}
+
+	/** Numbers the clients in the order they connected, from 1. */
+	public int getId() {
+		return mId;
+	}
+
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	/** Frames the socket took completely. */
+	public long getFramesWritten() {
+		return mFramesWritten;
+	}
+
+	public void onWritable() {
+		flush();
+	}
+
+	/**
+	 * Queues the replies collected while reading and tries to write them out
+	 * right away. Whatever the socket does not take now is sent when it
+	 * becomes writable again.
+	 */
+	private void sendReplies() {
+		final int n = mReply.length();
+		if (n == 0 || mClosed)
+			return;
+		if (mQueued == mQueue.length) {
+			// the client does not keep up, drop rather than block the loop
+			Log.d(toString(), "Client too slow, reply dropped!");
+			mReply.reset();
+			return;
+		}
+		final ByteBuffer out;
+		if (!mReplyQueued && n <= mReplyOut.capacity()) {
+			mReplyOut.clear();
+			mReplyOut.put(mReply.array(), 0, n).flip();
+			mReplyQueued = true;
+			out = mReplyOut;
+		} else {
+			final byte[] copy = new byte[n];
+			System.arraycopy(mReply.array(), 0, copy, 0, n);
+			out = ByteBuffer.wrap(copy);
+		}
+		mReply.reset();
+		enqueue(out, REPLY);
+		flush();
+	}
+
+	private void enqueue(final ByteBuffer data, final byte kind) {
+		final int tail = (mHead + mQueued) % mQueue.length;
+		mQueue[tail] = data;
+		mQueuePos[tail] = 0;
+		mQueueKind[tail] = kind;
+		mQueued++;
+	}
+
+	/** Writes as much of the queue as the socket takes in one gathering write. */
+	private void flush() {
+		if (mClosed)
+			return;
+		final int count = mQueued;
+		for (int i = 0; i < count; i++) {
+			final int slot = (mHead + i) % mQueue.length;
+			mGather[i] = mQueue[slot];
+			mGather[i].position(mQueuePos[slot]);
+		}
+		final Metrics metrics = mCB.getMetrics();
+		try {
+			if (count > 0) {
+				final long written = mGatherChannel.write(mGather, 0, count);
+				mBytesWritten += written;
+				metrics.onWritten(written);
+			}
+		} catch (final IOException e) {
+			Log.v("gspd", "Client got disconnected");
+			close();
+		}
+		for (int i = 0; i < count; i++) {
+			mGather[i] = null;
+		}
+		final long now = System.nanoTime();
+		while (mQueued > 0) {
+			final ByteBuffer head = mQueue[mHead];
+			if (head.hasRemaining() && !mClosed) {
+				mQueuePos[mHead] = head.position();
+				break;
+			}
+			if (head == mReplyOut) {
+				mReplyQueued = false;
+			} else if (mQueueKind[mHead] == FRAME_END) {
+				mPendingFrames--;
+				if (!head.hasRemaining()) {
+					mFramesWritten++;
+					metrics.onFrameWritten(mQueueUpdate[mHead], now);
+				}
+			}
+			mQueue[mHead] = null;
+			mHead = (mHead + 1) % mQueue.length;
+			mQueued--;
+		}
+		if (mKey != null && !mClosed) {
+			mKey.interestOps(mQueued > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+										 : SelectionKey.OP_READ);
+		}
+	}
+
+	public void close() {
+		if (mClosed)
+			return;
+		mClosed = true;
+		if (mKey != null) {
+			mKey.cancel();
+		}
+		// let go of the frames, they hold direct memory
+		for (int i = 0; i < mQueued; i++) {
+			mQueue[(mHead + i) % mQueue.length] = null;
+		}
+		mQueued = 0;
+		mPendingFrames = 0;
+		mQueuedFrame = null;
+		mCB.getMetrics().onDisconnect(this);
+		mDemandMs = NO_DEMAND;
+		mCB.onDemandChanged();
+		try {
+			mChannel.close();
+		} catch (final IOException e) {
+			Log.e(toString(), "Client Socket cannot be closed!");
+			e.printStackTrace();
+		}
+		Log.d(toString(), "Client Socket closed now! max lag " + mMaxLag
+				+ " frames, " + mDroppedFrames + " frames dropped");
+	}
+}
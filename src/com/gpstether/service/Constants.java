@@ -3,9 +3,63 @@ package com.gpstether.service;
 public final class Constants {
 	public static final int 		CLIENT_WAIT_TIMEOUT 		= 5000;
 	public static final int 		SOCKET_TIMEOUT 				= 1000; // 1 sec	
+
+	public static final int 		SELECTOR_LOOPS 				= 1; // client shards
+	public static final int 		CLIENT_READ_BUFFER 			= 1024;
+	public static final int 		CLIENT_REPLY_BUFFER 		= 4096; // larger replies are copied
+	public static final int 		CLIENT_QUEUE_DEPTH 			= 32; // queued replies and frame parts
+	public static final int 		CLIENT_MAX_LAG_FRAMES 		= 8; // frames a client may fall behind
+	public static final int 		CLIENT_SLOW_POLICY 			= Constants.SLOW_LATEST_FIX;
+	public static final long 		CLIENT_MIN_STREAM_MS 		= 0L; // no per client rate limit
 	
+	public static final int 		FIX_HISTORY_SIZE 			= 4096; // about 13 minutes at 5 Hz
+
+	// track recording, switched on by the extras of the service start intent
+	public static final String 		EXTRA_RECORD 				= "record"; // boolean
+	public static final String 		EXTRA_RECORD_FORMAT 		= "record_format"; // "binary" or "nmea"
+	public static final String 		RECORD_DIR 					= "tracks";
+	public static final int 		RECORD_QUEUE_SIZE 			= 1024; // fixes waiting for the writer
+	public static final int 		RECORD_SEGMENT_BYTES 		= 4 * 1024 * 1024;
+	public static final long 		RECORD_SEGMENT_MS 			= 60L * 60L * 1000L; // one hour of fixes
+	public static final long 		RECORD_FLUSH_MS 			= 1000L;
+
+	// replay of a recorded track instead of the GPS, also from start intent extras
+	public static final String 		EXTRA_REPLAY 				= "replay"; // file path
+	public static final String 		EXTRA_REPLAY_SPEED 			= "replay_speed"; // float, 0 as fast as possible
+	public static final String 		EXTRA_REPLAY_LOOP 			= "replay_loop"; // boolean
+	public static final int 		REPLAY_BUFFER 				= 8192;
+
+	// NMEA to a broadcast or multicast address, also from start intent extras
+	public static final String 		EXTRA_UDP_HOST 				= "udp_host";
+	public static final String 		EXTRA_UDP_PORT 				= "udp_port";
+	public static final int 		UDP_NMEA_PORT 				= 10110; // the usual NMEA over IP port
+
 	public static final long 		GPS_UPDATE_MS_TH 			= 200L; // 5 times a second!
 	public static final float 		GPS_UPDATE_METERS_TH     	= 1.0f; // every meter
+	// slower GPS rates when nobody streams, see RateController
+	public static final long 		GPS_IDLE_MS 				= 30000L; // no client connected
+	public static final long 		GPS_POLL_MS 				= 1000L; // polling clients only
+	public static final long 		GPS_STILL_MS 				= 2000L; // streaming, standing still
+	public static final float 		STILL_SPEED 				= 0.5f; // m/s, slower counts as still
+	public static final int 		STILL_FIXES 				= 5; // still fixes in a row to slow down
+
+	// choosing between GPS and network fixes, see FixFusion
+	public static final float 		FUSION_DRIFT_MPS 			= 2.0f; // how fast a fix gets worse
+	public static final long 		FUSION_STALE_MS 			= 10000L; // any fix beats one this old
+	public static final float 		FUSION_GPS_ACCURACY 		= 20.0f; // m, if a fix has none
+	public static final float 		FUSION_NETWORK_ACCURACY 	= 500.0f;
+
+	// smoothing of position, speed and climb, see KalmanFilter
+	public static final String 		EXTRA_FILTER 				= "filter"; // boolean
+	public static final float 		FILTER_ACCEL 				= 1.0f; // m/s^2, horizontal maneuvers
+	public static final float 		FILTER_ACCEL_UP 			= 0.3f; // m/s^2, vertical maneuvers
+	public static final float 		FILTER_SPEED_ACCURACY 		= 0.5f; // m/s, doppler speed
+	public static final float 		FILTER_ALT_FACTOR 			= 1.5f; // vertical vs horizontal error
+	public static final long 		FILTER_RESET_MS 			= 30000L; // start over after such a gap
+	public static final double 		FILTER_ORIGIN_M 			= 10000.0; // move the local origin
+
+	public static final long 		UI_FIX_MS 					= 1000L; // fixes for the activity's status line
+	public static final long 		SHUTDOWN_MS 				= 80L; // longest wait for all workers to stop
 	
 	public static final long 		NETW_UPDATE_MS_TH 			= 200L; // 5 times a second!
 	public static final float 		NETW_UPDATE_METERS_TH     	= 500.0f; // every 500 meters
@@ -20,9 +74,24 @@ public final class Constants {
 	public static final float 		MPS_TO_KMPH					= 3.6f;
 	public static final float 		KMPH_TO_MPS					= 2.7777777777778f;
 	
-	public static final String 		GPSD_DEVICE_NAME			= "F,Android GPS Device";
+	public static final String 		GPSD_DEVICE_NAME			= "Android GPS Device";
+	public static final int 		GPSD_DEVICE_NAME_MAX		= 64;
+
+	// gpsd JSON protocol, we speak the 3.x flavour
+	public static final String 		JSON_DEVICE					= "android";
+	public static final String 		JSON_DRIVER					= "Android GPS Device";
+	public static final String 		JSON_RELEASE				= "3.1";
+	public static final String 		JSON_REV					= "gpstether";
+	public static final int 		JSON_PROTO_MAJOR			= 3;
+	public static final int 		JSON_PROTO_MINOR			= 1;
 	
 	public static final int 		TRUE						=  1;
 	public static final int 		FALSE						=  0;
 	public static final int 		UNKNOWN						= -1;
+	// what happens to a client that does not keep up with the fixes
+	public static final int 		SLOW_DROP_OLDEST			=  0; // drop its oldest queued frames
+	public static final int 		SLOW_LATEST_FIX				=  1; // only the newest frame is ever queued
+	public static final int 		SLOW_DISCONNECT				=  2; // close it after CLIENT_MAX_LAG_FRAMES
+
+	public static final int 		TOGGLE						=  2; // flag command without argument
 }
@@ -0,0 +1,81 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import android.location.Location;
+import android.location.LocationManager;
+
+/**
+ * Decides which of the fixes coming in from GPS and network is the best
+ * current estimate, instead of the last one winning. A fix is scored by its
+ * accuracy; the current best one loses accuracy as it ages, as if the phone
+ * moved away at {@link Constants#FUSION_DRIFT_MPS} or its own speed. A fix of
+ * another provider only replaces it when it is at least as good by then, or
+ * when the current one is older than {@link Constants#FUSION_STALE_MS}. The
+ * same provider always replaces its own older fixes, never with an older or
+ * repeated one. Only used from the location callback thread.
+ */
+public class FixFusion {
+
+	private String mProvider = null;
+	private long mTime = 0;
+	private float mAccuracy = 0;
+	private float mSpeed = 0;
+	private long mReceived = 0;
+
+	/**
+	 * @param now SystemClock.elapsedRealtime() when the fix came in
+	 * @return true if loc is the new best estimate, false to drop it
+	 */
+	public boolean accept(final Location loc, final long now) {
+		final String provider = loc.getProvider() != null ? loc.getProvider() : "";
+		final float accuracy = accuracy(loc);
+		if (mProvider != null) {
+			final boolean same = mProvider.equals(provider);
+			if (same && loc.getTime() <= mTime)
+				return false; // repeated or out of order
+			final long age = now - mReceived;
+			if (!same && age < Constants.FUSION_STALE_MS) {
+				final float drift = Math.max(mSpeed, Constants.FUSION_DRIFT_MPS);
+				if (accuracy > mAccuracy + drift * age / 1000.0f)
+					return false;
+			}
+		}
+		mProvider = provider;
+		mTime = loc.getTime();
+		mAccuracy = accuracy;
+		mSpeed = loc.hasSpeed() ? loc.getSpeed() : 0;
+		mReceived = now;
+		return true;
+	}
+
+	/** True if loc comes from the same provider as the last accepted fix. */
+	public boolean sameProvider(final Location loc) {
+		return mProvider != null
+				&& mProvider.equals(loc.getProvider() != null ? loc.getProvider() : "");
+	}
+
+	/** Accuracy in meters, a typical one for the provider if unknown. */
+	static float accuracy(final Location loc) {
+		if (loc.hasAccuracy())
+			return loc.getAccuracy();
+		return LocationManager.GPS_PROVIDER.equals(loc.getProvider())
+				? Constants.FUSION_GPS_ACCURACY : Constants.FUSION_NETWORK_ACCURACY;
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.location.Location;
+import android.location.LocationManager;
+
+/**
+ * The most recent fixes, kept column by column in primitive arrays of fixed
+ * size, so memory does not grow however long the service runs. There is one
+ * writer (the location callback) and any number of readers that never lock:
+ * a reader copies what it wants into its own {@link Snapshot} and then drops
+ * every fix the writer may have overwritten while it was copying.
+ *
+ * That check only holds if the copy cannot be reordered after it, and plain
+ * array reads can be, there is no load fence on the platform versions we
+ * run on. So the columns are atomic arrays, doubles and floats as their raw
+ * bits: every access is volatile, in order, and a long never tears on 32 bit
+ * devices.
+ */
+public final class FixHistory {
+
+	public static final byte PROVIDER_GPS 		= 0;
+	public static final byte PROVIDER_NETWORK 	= 1;
+	public static final byte PROVIDER_OTHER 	= 2;
+
+	private final int mMask;
+
+	private final AtomicLongArray mTime;
+	private final AtomicLongArray mLat, mLon, mAlt;
+	private final AtomicIntegerArray mSpeed, mBearing, mAccuracy;
+	private final AtomicIntegerArray mProvider;
+
+	/** Fixes ever added; fix i lives in slot i & mMask. */
+	private volatile long mWritten = 0;
+
+	/** @param capacity rounded up to a power of two */
+	public FixHistory(final int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		mMask = size - 1;
+		mTime = new AtomicLongArray(size);
+		mLat = new AtomicLongArray(size);
+		mLon = new AtomicLongArray(size);
+		mAlt = new AtomicLongArray(size);
+		mSpeed = new AtomicIntegerArray(size);
+		mBearing = new AtomicIntegerArray(size);
+		mAccuracy = new AtomicIntegerArray(size);
+		mProvider = new AtomicIntegerArray(size);
+	}
+
+	public int capacity() {
+		return mMask + 1;
+	}
+
+	/** Fixes added since the service started, including overwritten ones. */
+	public long written() {
+		return mWritten;
+	}
+
+	/** Appends a fix, overwriting the oldest one when full. Single writer only. */
+	public void add(final Location loc) {
+		final long n = mWritten;
+		final int slot = (int) n & mMask;
+		mTime.set(slot, loc.getTime());
+		mLat.set(slot, Double.doubleToRawLongBits(loc.getLatitude()));
+		mLon.set(slot, Double.doubleToRawLongBits(loc.getLongitude()));
+		mAlt.set(slot, Double.doubleToRawLongBits(loc.getAltitude()));
+		mSpeed.set(slot, Float.floatToRawIntBits(loc.getSpeed()));
+		mBearing.set(slot, Float.floatToRawIntBits(loc.getBearing()));
+		mAccuracy.set(slot, Float.floatToRawIntBits(loc.hasAccuracy() ? loc.getAccuracy() : Float.NaN));
+		mProvider.set(slot, provider(loc.getProvider()));
+		// publishes the slot to the readers
+		mWritten = n + 1;
+	}
+
+	static byte provider(final String name) {
+		if (LocationManager.GPS_PROVIDER.equals(name))
+			return PROVIDER_GPS;
+		if (LocationManager.NETWORK_PROVIDER.equals(name))
+			return PROVIDER_NETWORK;
+		return PROVIDER_OTHER;
+	}
+
+	/**
+	 * Copies the last n fixes, oldest first.
+	 *
+	 * @return the number of fixes in out
+	 */
+	public int last(final int n, final Snapshot out) {
+		final long end = mWritten;
+		final long start = Math.max(Math.max(0, end - n), end - capacity());
+		return copy(start, end, out);
+	}
+
+	/**
+	 * Copies the fixes with from <= time <= to, oldest first. Fixes are kept
+	 * in arrival order, the search stops at the first one older than from.
+	 *
+	 * @return the number of fixes in out
+	 */
+	public int range(final long from, final long to, final Snapshot out) {
+		long end = mWritten;
+		final long oldest = Math.max(0, end - capacity());
+		// the newest fixes first, skipping those after to
+		while (end > oldest && mTime.get((int) (end - 1) & mMask) > to) {
+			end--;
+		}
+		long start = end;
+		while (start > oldest && mTime.get((int) (start - 1) & mMask) >= from) {
+			start--;
+		}
+		return copy(start, end, out);
+	}
+
+	private int copy(long start, final long end, final Snapshot out) {
+		start = Math.max(start, end - out.capacity());
+		int count = 0;
+		for (long i = start; i < end; i++) {
+			final int slot = (int) i & mMask;
+			out.time[count] = mTime.get(slot);
+			out.lat[count] = Double.longBitsToDouble(mLat.get(slot));
+			out.lon[count] = Double.longBitsToDouble(mLon.get(slot));
+			out.alt[count] = Double.longBitsToDouble(mAlt.get(slot));
+			out.speed[count] = Float.intBitsToFloat(mSpeed.get(slot));
+			out.bearing[count] = Float.intBitsToFloat(mBearing.get(slot));
+			out.accuracy[count] = Float.intBitsToFloat(mAccuracy.get(slot));
+			out.provider[count] = (byte) mProvider.get(slot);
+			count++;
+		}
+		// the writer may have lapped us meanwhile, slot of fix w - capacity
+		// is being overwritten by fix w, so only later ones are intact; the
+		// volatile reads above all happen before this one
+		final long intact = mWritten - capacity() + 1;
+		int skip = 0;
+		if (start < intact) {
+			skip = (int) Math.min(count, intact - start);
+			out.shift(skip, count);
+		}
+		out.count = count - skip;
+		return out.count;
+	}
+
+	/** Reader owned copy of some fixes, reused for every read. */
+	public static final class Snapshot {
+		public int count = 0;
+		public final long[] time;
+		public final double[] lat, lon, alt;
+		/** Speed in m/s, bearing in degrees, accuracy in meters or NaN. */
+		public final float[] speed, bearing, accuracy;
+		/** One of the PROVIDER_* constants. */
+		public final byte[] provider;
+
+		public Snapshot(final int capacity) {
+			time = new long[capacity];
+			lat = new double[capacity];
+			lon = new double[capacity];
+			alt = new double[capacity];
+			speed = new float[capacity];
+			bearing = new float[capacity];
+			accuracy = new float[capacity];
+			provider = new byte[capacity];
+		}
+
+		public int capacity() {
+			return time.length;
+		}
+
+		private void shift(final int skip, final int count) {
+			final int n = count - skip;
+			System.arraycopy(time, skip, time, 0, n);
+			System.arraycopy(lat, skip, lat, 0, n);
+			System.arraycopy(lon, skip, lon, 0, n);
+			System.arraycopy(alt, skip, alt, 0, n);
+			System.arraycopy(speed, skip, speed, 0, n);
+			System.arraycopy(bearing, skip, bearing, 0, n);
+			System.arraycopy(accuracy, skip, accuracy, 0, n);
+			System.arraycopy(provider, skip, provider, 0, n);
+		}
+	}
+}
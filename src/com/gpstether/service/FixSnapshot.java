@@ -0,0 +1,61 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import android.location.Location;
+
+/**
+ * The current fix with everything derived from it, built once per fix on the
+ * location callback thread and published through a single volatile
+ * reference. A reader that takes the reference once sees position, time and
+ * climb of the same fix, without locking. The location is never changed
+ * after it went into a snapshot.
+ */
+public final class FixSnapshot {
+
+	public static final FixSnapshot EMPTY = new FixSnapshot(0, null, 0, false);
+
+	/** Counts the fixes, 0 before the first one. */
+	public final long seq;
+	/** null before the first fix. */
+	public final Location location;
+	/** Vertical speed in m/s, positive going up. */
+	public final float climb;
+	/** Alternates from fix to fix, the O= report names GGA or RMC by it. */
+	public final boolean tag;
+	/** Time of the fix in whole seconds and hundredths, for the legacy reports. */
+	public final long timeSec;
+	public final int timeCs;
+
+	public FixSnapshot(final long seq, final Location location, final float climb,
+			final boolean tag) {
+		this.seq = seq;
+		this.location = location;
+		this.climb = climb;
+		this.tag = tag;
+		final long time = location != null ? location.getTime() : 0;
+		timeSec = time / 1000;
+		timeCs = (int) (time % 1000) / 10;
+	}
+
+	/** The snapshot of the next fix, with the tag flipped. */
+	public FixSnapshot next(final Location location, final float climb) {
+		return new FixSnapshot(seq + 1, location, climb, !tag);
+	}
+}
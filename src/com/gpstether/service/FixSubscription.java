@@ -0,0 +1,46 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+/**
+ * What a callback registered with registerFixCallback() wants, kept as its
+ * cookie in the RemoteCallbackList. Callbacks without one get the legacy
+ * gpsChanged() string.
+ */
+final class FixSubscription {
+
+	final long minIntervalMs;
+	final boolean satellites;
+
+	// only touched while broadcasting, under the callback list lock
+	private long mLastSent = -1;
+
+	FixSubscription(final long minIntervalMs, final boolean satellites) {
+		this.minIntervalMs = Math.max(0, minIntervalMs);
+		this.satellites = satellites;
+	}
+
+	/** True if a fix is due at now (elapsed ms), which then counts as sent. */
+	boolean due(final long now) {
+		if (mLastSent >= 0 && now - mLastSent < minIntervalMs)
+			return false;
+		mLastSent = now;
+		return true;
+	}
+}
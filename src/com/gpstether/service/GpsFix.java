@@ -0,0 +1,162 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import android.location.Location;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A fix as handed to bound activities through
+ * {@link ITetherServiceCallback#fixChanged(GpsFix)}: primitives only, about
+ * 70 bytes on the wire instead of the string of a Location. One instance is
+ * built per fix and shared by all callbacks. The satellites are left out
+ * unless a callback asked for them.
+ */
+public final class GpsFix implements Parcelable {
+
+	public static final int HAS_ALTITUDE 	= 1;
+	public static final int HAS_SPEED 		= 2;
+	public static final int HAS_BEARING 	= 4;
+	public static final int HAS_ACCURACY 	= 8;
+
+	/** UTC time of the fix in ms. */
+	public final long time;
+	public final double latitude;
+	public final double longitude;
+	/** Meters above the WGS84 ellipsoid. */
+	public final double altitude;
+	/** m/s */
+	public final float speed;
+	/** Degrees from true north. */
+	public final float bearing;
+	/** Meters. */
+	public final float accuracy;
+	/** Vertical speed in m/s, positive going up. */
+	public final float climb;
+	/** HAS_* bits. */
+	public final int flags;
+	/** One of FixHistory.PROVIDER_*. */
+	public final byte provider;
+	public final int satellitesInView;
+	public final int satellitesUsed;
+
+	// the satellite summary, null unless asked for
+	public final int[] prn;
+	/** Signal to noise ratio in dB. */
+	public final float[] snr;
+	public final boolean[] used;
+
+	public static final Parcelable.Creator<GpsFix> CREATOR = new Parcelable.Creator<GpsFix>() {
+		public GpsFix createFromParcel(final Parcel in) {
+			return new GpsFix(in);
+		}
+
+		public GpsFix[] newArray(final int size) {
+			return new GpsFix[size];
+		}
+	};
+
+	/**
+	 * @param climb the climb rate of the service, Location has none
+	 * @param satellites true to add the prn, snr and used flag of each one
+	 */
+	public GpsFix(final Location loc, final float climb, final SatelliteSnapshot sats,
+			final boolean satellites) {
+		time = loc.getTime();
+		latitude = loc.getLatitude();
+		longitude = loc.getLongitude();
+		altitude = loc.getAltitude();
+		speed = loc.getSpeed();
+		bearing = loc.getBearing();
+		accuracy = loc.getAccuracy();
+		this.climb = climb;
+		flags = (loc.hasAltitude() ? HAS_ALTITUDE : 0)
+				| (loc.hasSpeed() ? HAS_SPEED : 0)
+				| (loc.hasBearing() ? HAS_BEARING : 0)
+				| (loc.hasAccuracy() ? HAS_ACCURACY : 0);
+		provider = FixHistory.provider(loc.getProvider());
+		satellitesInView = sats.count;
+		satellitesUsed = sats.usedCount;
+		// the snapshot never changes, its arrays can be shared
+		prn = satellites ? sats.prn : null;
+		snr = satellites ? sats.snr : null;
+		used = satellites ? sats.used : null;
+	}
+
+	private GpsFix(final Parcel in) {
+		time = in.readLong();
+		latitude = in.readDouble();
+		longitude = in.readDouble();
+		altitude = in.readDouble();
+		speed = in.readFloat();
+		bearing = in.readFloat();
+		accuracy = in.readFloat();
+		climb = in.readFloat();
+		flags = in.readInt();
+		provider = (byte) in.readInt();
+		satellitesInView = in.readInt();
+		satellitesUsed = in.readInt();
+		prn = in.createIntArray();
+		snr = in.createFloatArray();
+		used = in.createBooleanArray();
+	}
+
+	public boolean has(final int flag) {
+		return (flags & flag) != 0;
+	}
+
+	public int describeContents() {
+		return 0;
+	}
+
+	public void writeToParcel(final Parcel out, final int flags) {
+		out.writeLong(time);
+		out.writeDouble(latitude);
+		out.writeDouble(longitude);
+		out.writeDouble(altitude);
+		out.writeFloat(speed);
+		out.writeFloat(bearing);
+		out.writeFloat(accuracy);
+		out.writeFloat(climb);
+		out.writeInt(this.flags);
+		out.writeInt(provider);
+		out.writeInt(satellitesInView);
+		out.writeInt(satellitesUsed);
+		// null arrays go out as a length of -1
+		out.writeIntArray(prn);
+		out.writeFloatArray(snr);
+		out.writeBooleanArray(used);
+	}
+
+	/** Short text for status lines, e.g. "48.208174 16.373819 +/-4m 12.5m/s 9/12 sats". */
+	@Override
+	public String toString() {
+		final AsciiBuffer b = new AsciiBuffer(80);
+		b.appendFixed(latitude, 6).append(' ').appendFixed(longitude, 6);
+		if (has(HAS_ACCURACY)) {
+			b.append(" +/-").append(Math.round(accuracy)).append('m');
+		}
+		if (has(HAS_SPEED)) {
+			b.append(' ').appendFixed(speed, 1).append("m/s");
+		}
+		b.append(' ').append(satellitesUsed).append('/').append(satellitesInView).append(" sats");
+		return b.toString();
+	}
+}
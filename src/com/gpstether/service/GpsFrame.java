@@ -0,0 +1,142 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The gpsd output for one fix, encoded once by {@link CallbackThread} and
+ * shared read only by every client. All parts live in one direct buffer, so
+ * clients hand them to the socket without copying. A new frame is built
+ * whenever the fix or the satellite status changes.
+ */
+public final class GpsFrame {
+
+	// order of the parts in the frame buffer
+	static final int NAV 	= 0;
+	static final int XMODE 	= 1;
+	static final int TPV 	= 2;
+	static final int SKY 	= 3;
+	static final int RAW 	= 4;
+	static final int UBX_PVT = 5;
+	static final int UBX_SAT = 6;
+	static final int PARTS 	= 7;
+
+	public static final GpsFrame EMPTY = empty();
+
+	/** Bumped for every frame, satellite updates included. */
+	public final long version;
+	/** Bumped for every new fix only, the {@link FixSnapshot#seq} of the fix. */
+	public final long fixSeq;
+	/** Bumped for every satellite status update only. */
+	public final long satSeq;
+	/** System.nanoTime() when the update this frame was built for came in. */
+	public final long updateNanos;
+
+	/**
+	 * Read only slices: "GPSD,O=...\r\n" watcher record, ",X=..." record
+	 * without reply start or line end, JSON TPV and SKY objects with line
+	 * end, the NMEA sentences and the binary UBX NAV-PVT and NAV-SAT
+	 * messages. Never move their position, take a {@link Views} instead.
+	 */
+	private final ByteBuffer[] mParts = new ByteBuffer[PARTS];
+
+	/**
+	 * @param data all parts back to back, in the order NAV, XMODE, TPV, SKY,
+	 *        RAW, UBX_PVT, UBX_SAT
+	 * @param ends end offset of each part in data
+	 */
+	GpsFrame(final long version, final long fixSeq, final long satSeq,
+			final long updateNanos, final AsciiBuffer data, final int[] ends) {
+		this.version = version;
+		this.fixSeq = fixSeq;
+		this.satSeq = satSeq;
+		this.updateNanos = updateNanos;
+
+		final ByteBuffer all = ByteBuffer.allocateDirect(data.length());
+		all.put(data.array(), 0, data.length());
+		int start = 0;
+		for (int i = 0; i < PARTS; i++) {
+			all.limit(ends[i]).position(start);
+			mParts[i] = all.slice().asReadOnlyBuffer();
+			start = ends[i];
+		}
+	}
+
+	private static GpsFrame empty() {
+		final AsciiBuffer b = new AsciiBuffer(256);
+		final int[] ends = new int[PARTS];
+		b.append(Constants.REPLY_START).append(",O=?").append(Constants.COMMAND_END);
+		ends[NAV] = b.length();
+		b.append(",X=0.0");
+		ends[XMODE] = b.length();
+		b.append("{\"class\":\"TPV\",\"device\":\"").append(Constants.JSON_DEVICE)
+		 .append("\",\"mode\":1}").append(Constants.COMMAND_END);
+		ends[TPV] = b.length();
+		b.append("{\"class\":\"SKY\",\"device\":\"").append(Constants.JSON_DEVICE)
+		 .append("\",\"satellites\":[]}").append(Constants.COMMAND_END);
+		ends[SKY] = b.length();
+		ends[RAW] = b.length();
+		ends[UBX_PVT] = b.length();
+		ends[UBX_SAT] = b.length();
+		return new GpsFrame(0, 0, 0, System.nanoTime(), b, ends);
+	}
+
+	/** The part as shared read only buffer, positioned at its start. */
+	ByteBuffer part(final int part) {
+		return mParts[part];
+	}
+
+	/** Private cursors over the parts, one set per selector loop. */
+	Views newViews() {
+		return new Views(this);
+	}
+
+	public String getRawInfo() {
+		return ascii(mParts[RAW], 0, mParts[RAW].limit());
+	}
+
+	private static String ascii(final ByteBuffer b, final int off, final int len) {
+		final char[] chars = new char[len];
+		for (int i = 0; i < len; i++) {
+			chars[i] = (char) (b.get(off + i) & 0xff);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Duplicates of the frame parts with their own position. Clients of one
+	 * loop share them: each client sets the position it got to before its
+	 * write and remembers it after, so a lagging client costs no copy.
+	 */
+	static final class Views {
+		final GpsFrame frame;
+		final ByteBuffer nav, tpv, sky, raw, pvt, sat;
+
+		private Views(final GpsFrame f) {
+			frame = f;
+			nav = f.mParts[NAV].duplicate();
+			tpv = f.mParts[TPV].duplicate();
+			sky = f.mParts[SKY].duplicate();
+			raw = f.mParts[RAW].duplicate();
+			pvt = f.mParts[UBX_PVT].duplicate();
+			sat = f.mParts[UBX_SAT].duplicate();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts non negative values in a fixed set of buckets, so recording never
+ * allocates and any number of threads may record at once. Values below 16
+ * get a bucket each, every power of two above is split into 8 buckets, so a
+ * quantile is off by at most an eighth of its value.
+ */
+public final class Histogram {
+
+	private static final int LINEAR 	= 16;
+	private static final int SUB_BITS 	= 3;
+	private static final int SUB 		= 1 << SUB_BITS;
+	private static final int BUCKETS 	= LINEAR + (64 - 4) * SUB;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	/** Adds a value, negative ones count as 0. */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		mCounts.incrementAndGet(bucket(value));
+		mCount.incrementAndGet();
+		mSum.addAndGet(value);
+		long max;
+		while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+			// another thread raised the max meanwhile, try again
+		}
+	}
+
+	public long count() {
+		return mCount.get();
+	}
+
+	public long max() {
+		return mMax.get();
+	}
+
+	public double mean() {
+		final long n = mCount.get();
+		return n == 0 ? 0 : (double) mSum.get() / n;
+	}
+
+	/**
+	 * The value q (0 to 1) of all recorded ones are at or below, rounded up
+	 * to the end of its bucket. 0 if nothing was recorded.
+	 */
+	public long quantile(final double q) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += mCounts.get(i);
+		}
+		if (total == 0)
+			return 0;
+		final long rank = Math.max(1, (long) Math.ceil(q * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += mCounts.get(i);
+			if (seen >= rank)
+				return Math.min(upper(i), mMax.get());
+		}
+		return mMax.get();
+	}
+
+	static int bucket(final long value) {
+		if (value < LINEAR)
+			return (int) value;
+		final int msb = 63 - Long.numberOfLeadingZeros(value);
+		return LINEAR + (msb - 4) * SUB + (int) ((value >>> (msb - SUB_BITS)) & (SUB - 1));
+	}
+
+	/** The largest value that goes into bucket b. */
+	static long upper(final int b) {
+		if (b < LINEAR)
+			return b;
+		final int msb = (b - LINEAR) / SUB + 4;
+		if (msb >= 62)
+			return Long.MAX_VALUE;
+		final long sub = (b - LINEAR) % SUB;
+		return ((SUB + sub + 1) << (msb - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal streaming JSON writer on top of an {@link AsciiBuffer}, enough for
+ * the gpsd JSON protocol. It only tracks where commas go, so writing an
+ * object does not allocate. Member names are written as given and must not
+ * need escaping.
+ */
+public class JsonWriter {
+
+	private static final int MAX_DEPTH = 8;
+
+	private final AsciiBuffer mOut;
+	private final boolean[] mFirst = new boolean[MAX_DEPTH];
+	private int mDepth = 0;
+	private boolean mAfterName = false;
+
+	public JsonWriter(final AsciiBuffer out) {
+		mOut = out;
+	}
+
+	public AsciiBuffer getBuffer() {
+		return mOut;
+	}
+
+	/** Clears the buffer and starts a new top level value. */
+	public JsonWriter reset() {
+		mOut.reset();
+		mDepth = 0;
+		mAfterName = false;
+		return this;
+	}
+
+	public JsonWriter beginObject() {
+		separator();
+		mOut.append('{');
+		push();
+		return this;
+	}
+
+	public JsonWriter endObject() {
+		mDepth--;
+		mOut.append('}');
+		return this;
+	}
+
+	public JsonWriter beginArray() {
+		separator();
+		mOut.append('[');
+		push();
+		return this;
+	}
+
+	public JsonWriter endArray() {
+		mDepth--;
+		mOut.append(']');
+		return this;
+	}
+
+	public JsonWriter name(final String name) {
+		separator();
+		mOut.append('"').append(name).append("\":");
+		mAfterName = true;
+		return this;
+	}
+
+	public JsonWriter value(final String value) {
+		separator();
+		mOut.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				mOut.append('\\').append(c);
+			} else if (c < 0x20 || c > 0x7e) {
+				mOut.append("\\u00").appendHex2(c > 0xff ? '?' : c);
+			} else {
+				mOut.append(c);
+			}
+		}
+		mOut.append('"');
+		return this;
+	}
+
+	public JsonWriter value(final long value) {
+		separator();
+		mOut.append(value);
+		return this;
+	}
+
+	public JsonWriter value(final boolean value) {
+		separator();
+		mOut.append(value ? "true" : "false");
+		return this;
+	}
+
+	/** Writes a number with a fixed count of decimals. */
+	public JsonWriter value(final double value, final int decimals) {
+		separator();
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			mOut.append("null");
+		} else {
+			mOut.appendFixed(value, decimals);
+		}
+		return this;
+	}
+
+	/** Writes a UTC time as an ISO 8601 string. */
+	public JsonWriter timeValue(final long time) {
+		separator();
+		mOut.append('"').appendIsoTime(time).append('"');
+		return this;
+	}
+
+	/** Embeds an already serialized JSON value. */
+	public JsonWriter rawValue(final byte[] json, final int off, final int len) {
+		separator();
+		mOut.append(json, off, len);
+		return this;
+	}
+
+	/** Embeds an already serialized JSON value held in a buffer. */
+	public JsonWriter rawValue(final ByteBuffer json, final int off, final int len) {
+		separator();
+		mOut.append(json, off, len);
+		return this;
+	}
+
+	private void push() {
+		mFirst[mDepth++] = true;
+	}
+
+	private void separator() {
+		if (mAfterName) {
+			mAfterName = false;
+			return;
+		}
+		if (mDepth > 0) {
+			if (!mFirst[mDepth - 1]) {
+				mOut.append(',');
+			}
+			mFirst[mDepth - 1] = false;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import android.location.Location;
+
+/**
+ * Constant velocity Kalman filter over east, north and up, in meters around
+ * a local origin near the phone. Each axis is filtered on its own with a
+ * position and velocity state; positions are weighed by the accuracy of the
+ * fix, the doppler speed and bearing of GPS fixes update the horizontal
+ * velocities. The state lives in a few primitive arrays, so a fix costs a
+ * fixed amount of arithmetic and no allocation. Only used from the location
+ * callback thread.
+ */
+public class KalmanFilter {
+
+	private static final int EAST = 0;
+	private static final int NORTH = 1;
+	private static final int UP = 2;
+
+	/** Meters per degree of latitude, on a sphere of the mean earth radius. */
+	private static final double M_PER_DEG = 6371008.8 * Math.PI / 180.0;
+
+	// per axis: position, velocity and their covariance
+	private final double[] mPos = new double[3];
+	private final double[] mVel = new double[3];
+	private final double[] mP00 = new double[3];
+	private final double[] mP01 = new double[3];
+	private final double[] mP11 = new double[3];
+
+	private boolean mStarted = false;
+	private boolean mHasAltitude = false;
+	private long mTime = 0;
+	private double mLat0 = 0;
+	private double mLon0 = 0;
+	private double mMPerDegLon = M_PER_DEG;
+
+	/** Forgets the state, the next fix starts over. */
+	public void reset() {
+		mStarted = false;
+		mHasAltitude = false;
+	}
+
+	/**
+	 * Updates the estimate with the fix and writes the filtered position,
+	 * speed and bearing back into it.
+	 */
+	public void apply(final Location loc) {
+		final long time = loc.getTime();
+		if (mStarted && (time - mTime > Constants.FILTER_RESET_MS
+				|| mTime - time > Constants.FILTER_RESET_MS)) {
+			reset();
+		}
+		final double accuracy = FixFusion.accuracy(loc);
+		if (!mStarted) {
+			start(loc, accuracy);
+		} else {
+			// network and GPS clocks may disagree a little, never predict backwards
+			final double dt = Math.max(0, time - mTime) / 1000.0;
+			final double q = Constants.FILTER_ACCEL * Constants.FILTER_ACCEL;
+			predict(EAST, dt, q);
+			predict(NORTH, dt, q);
+			predict(UP, dt, Constants.FILTER_ACCEL_UP * Constants.FILTER_ACCEL_UP);
+
+			final double r = accuracy * accuracy;
+			updatePos(EAST, east(loc.getLongitude()), r);
+			updatePos(NORTH, north(loc.getLatitude()), r);
+			if (loc.hasAltitude()) {
+				if (mHasAltitude) {
+					final double v = accuracy * Constants.FILTER_ALT_FACTOR;
+					updatePos(UP, loc.getAltitude(), v * v);
+				} else {
+					startAxis(UP, loc.getAltitude(), accuracy * Constants.FILTER_ALT_FACTOR);
+					mHasAltitude = true;
+				}
+			}
+		}
+		if (loc.hasSpeed() && (loc.hasBearing() || loc.getSpeed() == 0)) {
+			final double speed = loc.getSpeed();
+			final double track = Math.toRadians(loc.getBearing());
+			final double r = Constants.FILTER_SPEED_ACCURACY * Constants.FILTER_SPEED_ACCURACY;
+			updateVel(EAST, speed * Math.sin(track), r);
+			updateVel(NORTH, speed * Math.cos(track), r);
+		}
+		mTime = Math.max(mTime, time);
+
+		if (Math.abs(mPos[EAST]) > Constants.FILTER_ORIGIN_M
+				|| Math.abs(mPos[NORTH]) > Constants.FILTER_ORIGIN_M) {
+			moveOrigin();
+		}
+		write(loc);
+	}
+
+	/** Vertical speed in m/s, positive going up. */
+	public float getClimb() {
+		return mHasAltitude ? (float) mVel[UP] : 0;
+	}
+
+	private void start(final Location loc, final double accuracy) {
+		mLat0 = loc.getLatitude();
+		mLon0 = loc.getLongitude();
+		mMPerDegLon = M_PER_DEG * Math.cos(Math.toRadians(mLat0));
+		startAxis(EAST, 0, accuracy);
+		startAxis(NORTH, 0, accuracy);
+		mHasAltitude = loc.hasAltitude();
+		startAxis(UP, loc.getAltitude(), accuracy * Constants.FILTER_ALT_FACTOR);
+		mTime = loc.getTime();
+		mStarted = true;
+	}
+
+	/** Position as measured, velocity unknown: anything a car could do. */
+	private void startAxis(final int a, final double pos, final double accuracy) {
+		mPos[a] = pos;
+		mVel[a] = 0;
+		mP00[a] = accuracy * accuracy;
+		mP01[a] = 0;
+		mP11[a] = 50.0 * 50.0;
+	}
+
+	/** Moves the state dt seconds ahead, q is the variance of the acceleration. */
+	private void predict(final int a, final double dt, final double q) {
+		if (dt == 0)
+			return;
+		final double dt2 = dt * dt;
+		mPos[a] += mVel[a] * dt;
+		mP00[a] += dt * (2 * mP01[a] + dt * mP11[a]) + q * dt2 * dt / 3;
+		mP01[a] += dt * mP11[a] + q * dt2 / 2;
+		mP11[a] += q * dt;
+	}
+
+	/** Measurement z of the position with variance r. */
+	private void updatePos(final int a, final double z, final double r) {
+		final double p00 = mP00[a], p01 = mP01[a], p11 = mP11[a];
+		final double s = p00 + r;
+		final double k0 = p00 / s;
+		final double k1 = p01 / s;
+		final double y = z - mPos[a];
+		mPos[a] += k0 * y;
+		mVel[a] += k1 * y;
+		mP00[a] = (1 - k0) * p00;
+		mP01[a] = (1 - k0) * p01;
+		mP11[a] = p11 - k1 * p01;
+	}
+
+	/** Measurement z of the velocity with variance r. */
+	private void updateVel(final int a, final double z, final double r) {
+		final double p00 = mP00[a], p01 = mP01[a], p11 = mP11[a];
+		final double s = p11 + r;
+		final double k0 = p01 / s;
+		final double k1 = p11 / s;
+		final double y = z - mVel[a];
+		mPos[a] += k0 * y;
+		mVel[a] += k1 * y;
+		mP00[a] = p00 - k0 * p01;
+		mP01[a] = (1 - k1) * p01;
+		mP11[a] = (1 - k1) * p11;
+	}
+
+	private double east(final double lon) {
+		double d = lon - mLon0;
+		if (d > 180) {
+			d -= 360;
+		} else if (d < -180) {
+			d += 360;
+		}
+		return d * mMPerDegLon;
+	}
+
+	private double north(final double lat) {
+		return (lat - mLat0) * M_PER_DEG;
+	}
+
+	private double longitude() {
+		double lon = mLon0 + mPos[EAST] / mMPerDegLon;
+		if (lon > 180) {
+			lon -= 360;
+		} else if (lon < -180) {
+			lon += 360;
+		}
+		return lon;
+	}
+
+	/** Keeps the flat earth error small by re-centering on the estimate. */
+	private void moveOrigin() {
+		mLat0 += mPos[NORTH] / M_PER_DEG;
+		mLon0 = longitude();
+		mMPerDegLon = M_PER_DEG * Math.cos(Math.toRadians(mLat0));
+		mPos[EAST] = 0;
+		mPos[NORTH] = 0;
+	}
+
+	private void write(final Location loc) {
+		loc.setLatitude(mLat0 + mPos[NORTH] / M_PER_DEG);
+		loc.setLongitude(longitude());
+		if (mHasAltitude && loc.hasAltitude()) {
+			loc.setAltitude(mPos[UP]);
+		}
+		final double ve = mVel[EAST], vn = mVel[NORTH];
+		final double speed = Math.sqrt(ve * ve + vn * vn);
+		loc.setSpeed((float) speed);
+		// standing still the direction is noise, keep what the fix said
+		if (speed >= Constants.STILL_SPEED) {
+			double track = Math.toDegrees(Math.atan2(ve, vn));
+			if (track < 0) {
+				track += 360;
+			}
+			loc.setBearing((float) track);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.SystemClock;
+
+/**
+ * Counters and histograms of the service, cheap enough to stay on in the fix
+ * and write paths: recording is a few atomic adds and never allocates. The
+ * clients read a snapshot with the "?METRICS;" request, see
+ * {@link #writeJson(JsonWriter)}.
+ */
+public final class Metrics {
+
+	private final long mStarted = SystemClock.elapsedRealtime();
+
+	/** Fixes received, indexed by FixHistory.PROVIDER_*. */
+	private final AtomicLongArray mFixes = new AtomicLongArray(3);
+	/** Fixes FixFusion found worse than the one we had. */
+	private final AtomicLong mRejected = new AtomicLong();
+	/** Wall clock time from the fix to its encoding, in ms. */
+	public final Histogram fixAgeMs = new Histogram();
+	/** Time between two fixes, in ms. */
+	public final Histogram fixIntervalMs = new Histogram();
+	/** Time to encode a frame, in us. */
+	public final Histogram encodeUs = new Histogram();
+	/** From the update coming in to a client socket taking its whole frame, in us. */
+	public final Histogram fixToWriteUs = new Histogram();
+
+	private final AtomicLong mBytes = new AtomicLong();
+	private final AtomicLong mFrames = new AtomicLong();
+	private final AtomicLong mDropped = new AtomicLong();
+	private final AtomicInteger mActive = new AtomicInteger();
+	private final AtomicInteger mConnections = new AtomicInteger();
+
+	// changes on connect and disconnect only
+	private final CopyOnWriteArrayList<ClientSession> mSessions =
+		new CopyOnWriteArrayList<ClientSession>();
+
+	public void onFix(final byte provider) {
+		mFixes.incrementAndGet(provider);
+	}
+
+	public void onFixRejected() {
+		mRejected.incrementAndGet();
+	}
+
+	/** @return the id of the new client */
+	public int onConnect(final ClientSession session) {
+		mActive.incrementAndGet();
+		mSessions.add(session);
+		return mConnections.incrementAndGet();
+	}
+
+	public void onDisconnect(final ClientSession session) {
+		mActive.decrementAndGet();
+		mSessions.remove(session);
+	}
+
+	/** The connected clients, safe to iterate from any thread. */
+	public List<ClientSession> getSessions() {
+		return mSessions;
+	}
+
+	public void onWritten(final long bytes) {
+		mBytes.addAndGet(bytes);
+	}
+
+	public void onFrameWritten(final long updateNanos, final long nowNanos) {
+		mFrames.incrementAndGet();
+		fixToWriteUs.record((nowNanos - updateNanos) / 1000);
+	}
+
+	public void onDropped(final int frames) {
+		mDropped.addAndGet(frames);
+	}
+
+	/** Writes the METRICS object, totals first and then one entry per client. */
+	public void writeJson(final JsonWriter w) {
+		w.beginObject()
+		 .name("class").value("METRICS")
+		 .name("uptime").value((SystemClock.elapsedRealtime() - mStarted) / 1000)
+		 .name("fixes").beginObject()
+		 .name("gps").value(mFixes.get(FixHistory.PROVIDER_GPS))
+		 .name("network").value(mFixes.get(FixHistory.PROVIDER_NETWORK))
+		 .name("other").value(mFixes.get(FixHistory.PROVIDER_OTHER))
+		 .name("rejected").value(mRejected.get())
+		 .endObject()
+		 .name("active").value(mActive.get())
+		 .name("connections").value(mConnections.get())
+		 .name("bytes").value(mBytes.get())
+		 .name("frames").value(mFrames.get())
+		 .name("dropped").value(mDropped.get());
+		writeHistogram(w, "fix_age_ms", fixAgeMs);
+		writeHistogram(w, "fix_interval_ms", fixIntervalMs);
+		writeHistogram(w, "encode_us", encodeUs);
+		writeHistogram(w, "fix_to_write_us", fixToWriteUs);
+		w.name("clients").beginArray();
+		for (final ClientSession s : mSessions) {
+			w.beginObject()
+			 .name("id").value(s.getId())
+			 .name("bytes").value(s.getBytesWritten())
+			 .name("frames").value(s.getFramesWritten())
+			 .name("dropped").value(s.getDroppedFrames())
+			 .name("lag").value(s.getLag())
+			 .name("max_lag").value(s.getMaxLag())
+			 .endObject();
+		}
+		w.endArray().endObject();
+	}
+
+	private static void writeHistogram(final JsonWriter w, final String name,
+			final Histogram h) {
+		w.name(name).beginObject()
+		 .name("count").value(h.count())
+		 .name("mean").value(h.mean(), 1)
+		 .name("p50").value(h.quantile(0.5))
+		 .name("p99").value(h.quantile(0.99))
+		 .name("p999").value(h.quantile(0.999))
+		 .name("max").value(h.max())
+		 .endObject();
+	}
+}
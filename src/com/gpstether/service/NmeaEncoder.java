@@ -0,0 +1,216 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+/**
+ * Writes NMEA 0183 sentences straight into an {@link AsciiBuffer}. Positions
+ * are formatted in fixed point, the UTC date is only recomputed when the day
+ * changes and the checksum is accumulated while writing, so after warm-up no
+ * call allocates. Not thread safe, use one encoder per thread.
+ */
+public class NmeaEncoder {
+
+	private static final long MS_PER_DAY = AsciiBuffer.MS_PER_DAY;
+	// 1/10000 of an arc minute, the resolution of "ddmm.mmmm"
+	private static final double DEG_TO_UNITS = 60.0 * 10000.0;
+
+	private final AsciiBuffer mOut;
+
+	private long mDay = Long.MIN_VALUE;
+	private int mDate = 0; // ddmmyy
+	private int mHms = 0; // hhmmss
+	private int mCenti = 0;
+
+	private double mLat, mLon, mAlt;
+	private float mKnots, mBearing;
+	private boolean mHasBearing;
+
+	private int mNumSatellites = 0;
+	private float mPdop, mHdop, mVdop;
+
+	public NmeaEncoder(final AsciiBuffer out) {
+		mOut = out;
+	}
+
+	public AsciiBuffer getBuffer() {
+		return mOut;
+	}
+
+	/** Sets the fix the next sentences are generated from. */
+	public void setFix(final long time, final double lat, final double lon,
+			final double alt, final float speedMps, final float bearing,
+			final boolean hasBearing) {
+		setTime(time);
+		mLat = lat; mLon = lon; mAlt = alt;
+		mKnots = (float) (speedMps * Constants.M_TO_KNOTS);
+		mBearing = bearing; mHasBearing = hasBearing;
+	}
+
+	/** Sets satellites used in the fix and dilutions of precision, 0 means unknown. */
+	public void setSatellites(final int count, final float pdop,
+			final float hdop, final float vdop) {
+		mNumSatellites = count;
+		mPdop = pdop; mHdop = hdop; mVdop = vdop;
+	}
+
+	private void setTime(final long time) {
+		long day = time / MS_PER_DAY;
+		long tod = time % MS_PER_DAY;
+		if (tod < 0) {
+			day--;
+			tod += MS_PER_DAY;
+		}
+		if (day != mDay) {
+			mDay = day;
+			final int date = AsciiBuffer.civilDate(day);
+			mDate = date % 100 * 10000 + date / 100 % 100 * 100 + date / 10000 % 100;
+		}
+		final int secs = (int) (tod / 1000);
+		mHms = secs / 3600 * 10000 + secs / 60 % 60 * 100 + secs % 60;
+		mCenti = (int) (tod % 1000) / 10;
+	}
+
+	// $GPGGA,170834.00,4124.8963,N,08151.6838,W,1,05,1.5,280.2,M,,M,,*hh
+	public void gga() {
+		begin("GPGGA,");
+		time();
+		latLon();
+		mOut.append("1,").append(mNumSatellites, 2).append(',');
+		dop(mHdop);
+		mOut.appendFixed(mAlt, 1).append(",M,,M,,");
+		end();
+	}
+
+	// $GPGLL,4124.8963,N,08151.6838,W,170834.00,A*hh
+	public void gll() {
+		begin("GPGLL,");
+		latLon();
+		time();
+		mOut.append('A');
+		end();
+	}
+
+	// $GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1*hh
+	public void gsa(final SatelliteSnapshot sats) {
+		begin("GPGSA,A,");
+		if (mNumSatellites > 3) {
+			mOut.append('3');
+		} else if (mNumSatellites > 0) {
+			mOut.append('2');
+		} else {
+			mOut.append('1');
+		}
+		// the first 12 satellites used in the fix
+		int slots = 12;
+		for (int i = 0; i < sats.count && slots > 0; i++) {
+			if (sats.used[i] && sats.prn[i] > 0) {
+				mOut.append(',').append(sats.prn[i], 2);
+				slots--;
+			}
+		}
+		for (; slots > 0; slots--) {
+			mOut.append(',');
+		}
+		mOut.append(',');
+		dop(mPdop);
+		dop(mHdop);
+		if (mVdop > 0) {
+			mOut.appendFixed(mVdop, 1);
+		}
+		end();
+	}
+
+	// $GPGSV,3,1,11,03,03,111,00,04,15,270,00,06,01,010,00,13,06,292,00*hh
+	// four satellites per sentence, as many sentences as needed
+	public void gsv(final SatelliteSnapshot sats) {
+		final int total = Math.max(1, (sats.count + 3) / 4);
+		for (int msg = 0; msg < total; msg++) {
+			begin("GPGSV,");
+			mOut.append(total).append(',').append(msg + 1).append(',')
+				.append(sats.count, 2);
+			final int end = Math.min(sats.count, msg * 4 + 4);
+			for (int i = msg * 4; i < end; i++) {
+				mOut.append(',').append(sats.prn[i], 2).append(',');
+				if (sats.elevation[i] != 0 || sats.azimuth[i] != 0) {
+					mOut.append(Math.round(sats.elevation[i]), 2).append(',')
+						.append(Math.round(sats.azimuth[i]), 3);
+				} else {
+					mOut.append(',');
+				}
+				mOut.append(',');
+				if (sats.snr[i] > 0) {
+					mOut.append(Math.round(sats.snr[i]), 2);
+				}
+			}
+			end();
+		}
+	}
+
+	// $GPRMC,104748.82,A,4301.1492,N,08803.0374,W,0.09,102.4,010605,,,A*hh
+	public void rmc() {
+		begin("GPRMC,");
+		time();
+		mOut.append("A,");
+		latLon();
+		mOut.appendFixed(mKnots, 2).append(',');
+		if (mHasBearing) {
+			mOut.appendFixed(mBearing, 1);
+		}
+		mOut.append(',').append(mDate, 6).append(",,,A");
+		end();
+	}
+
+	private void begin(final String head) {
+		mOut.append('$');
+		mOut.startChecksum();
+		mOut.append(head);
+	}
+
+	private void end() {
+		final int sum = mOut.checksum();
+		mOut.append('*').appendHex2(sum).append(Constants.COMMAND_END);
+	}
+
+	private void time() {
+		mOut.append(mHms, 6).append('.').append(mCenti, 2).append(',');
+	}
+
+	private void dop(final float dop) {
+		if (dop > 0) {
+			mOut.appendFixed(dop, 1);
+		}
+		mOut.append(',');
+	}
+
+	private void latLon() {
+		angle(mLat, 2);
+		mOut.append(mLat >= 0 ? "N," : "S,");
+		angle(mLon, 3);
+		mOut.append(mLon >= 0 ? "E," : "W,");
+	}
+
+	/** Writes |deg| as "dddmm.mmmm," in fixed point. */
+	private void angle(final double deg, final int degDigits) {
+		final long units = Math.round(Math.abs(deg) * DEG_TO_UNITS);
+		final long minutes = units % 600000;
+		mOut.append(units / 600000, degDigits)
+			.append(minutes / 10000, 2).append('.')
+			.append(minutes % 10000, 4).append(',');
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Asks the location manager for fixes only as often as someone needs them.
+ * With nobody connected the GPS runs at {@link Constants#GPS_IDLE_MS}, with
+ * only polling clients at {@link Constants#GPS_POLL_MS}; streaming clients
+ * get the rate the fastest of them asked for ("c="), but never faster than
+ * {@link Constants#GPS_UPDATE_MS_TH}. While the phone stands still streams
+ * slow down to {@link Constants#GPS_STILL_MS}.
+ *
+ * Demand changes come from the selector loops and fixes from the main
+ * thread; the updates are always re-registered on the handler's thread,
+ * right away, so a new watcher gets the fast rate with the next fix.
+ */
+public class RateController implements Runnable {
+
+	private final LocationManager mLocMan;
+	private final LocationListener mListener;
+	private final Metrics mMetrics;
+	private final Handler mHandler;
+
+	// guarded by this
+	private long mTargetMs = -1;
+	private int mStillFixes = 0;
+	private boolean mPosted = false;
+
+	// handler thread only
+	private long mRegisteredMs = -1;
+	private boolean mStopped = false;
+
+	/** @param handler of the thread the location updates are registered on */
+	public RateController(final LocationManager locMan, final CallbackThread cb,
+			final Handler handler) {
+		mLocMan = locMan;
+		mListener = cb;
+		mMetrics = cb.getMetrics();
+		mHandler = handler;
+	}
+
+	/** Registers for updates at the idle rate, call on the handler's thread. */
+	public void start() {
+		synchronized (this) {
+			mTargetMs = targetMs();
+		}
+		run();
+	}
+
+	/** Removes the updates, call on the handler's thread. */
+	public void stop() {
+		mStopped = true;
+		mHandler.removeCallbacks(this);
+		mLocMan.removeUpdates(mListener);
+	}
+
+	/** Clients connected, left or changed what they stream; any thread. */
+	public void onDemandChanged() {
+		update();
+	}
+
+	/** Counts the fixes taken standing still, from the location callback. */
+	public void onFix(final Location loc) {
+		if (!LocationManager.GPS_PROVIDER.equals(loc.getProvider()))
+			return;
+		synchronized (this) {
+			if (loc.hasSpeed() && loc.getSpeed() >= Constants.STILL_SPEED) {
+				mStillFixes = 0;
+			} else if (mStillFixes < Constants.STILL_FIXES) {
+				mStillFixes++;
+			} else {
+				return; // still standing, nothing changes
+			}
+		}
+		update();
+	}
+
+	private void update() {
+		synchronized (this) {
+			// under the lock, so a later change never loses against an earlier one
+			final long target = targetMs();
+			if (target == mTargetMs)
+				return;
+			mTargetMs = target;
+			if (mPosted)
+				return;
+			mPosted = true;
+		}
+		mHandler.post(this);
+	}
+
+	private long targetMs() {
+		int clients = 0;
+		long fastest = Long.MAX_VALUE;
+		for (final ClientSession session : mMetrics.getSessions()) {
+			clients++;
+			final long demand = session.getDemandMs();
+			if (demand >= 0 && demand < fastest) {
+				fastest = demand;
+			}
+		}
+		if (clients == 0)
+			return Constants.GPS_IDLE_MS;
+		if (fastest == Long.MAX_VALUE)
+			return Constants.GPS_POLL_MS;
+		long ms = Math.max(Constants.GPS_UPDATE_MS_TH, fastest);
+		synchronized (this) {
+			if (mStillFixes >= Constants.STILL_FIXES) {
+				ms = Math.max(ms, Constants.GPS_STILL_MS);
+			}
+		}
+		return ms;
+	}
+
+	/** Re-registers the updates if the rate changed. */
+	public void run() {
+		final long target;
+		synchronized (this) {
+			mPosted = false;
+			target = mTargetMs;
+		}
+		if (mStopped || target == mRegisteredMs)
+			return;
+		mLocMan.removeUpdates(mListener);
+		mLocMan.requestLocationUpdates(LocationManager.GPS_PROVIDER, target,
+				Constants.GPS_UPDATE_METERS_TH, mListener);
+		mLocMan.requestLocationUpdates(LocationManager.NETWORK_PROVIDER,
+				Math.max(target, Constants.NETW_UPDATE_MS_TH),
+				Constants.NETW_UPDATE_METERS_TH, mListener);
+		mRegisteredMs = target;
+		Log.d(getClass().toString(), "Location updates every " + target + " ms");
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import android.location.GpsSatellite;
+import android.location.GpsStatus;
+
+/**
+ * The satellites of one GPS status event. Built once per event and never
+ * changed afterwards, so it is published through a single volatile reference
+ * and read by the encoders without locking. Index i of every array describes
+ * the same satellite.
+ */
+public final class SatelliteSnapshot {
+
+	public static final SatelliteSnapshot EMPTY = new SatelliteSnapshot(0, 0,
+			new int[0], new float[0], new float[0], new float[0], new boolean[0]);
+
+	/** Satellites in view. */
+	public final int count;
+	/** Satellites used in the last fix. */
+	public final int usedCount;
+
+	public final int[] prn;
+	/** Signal to noise ratio in dB. */
+	public final float[] snr;
+	/** Degrees from true north. */
+	public final float[] azimuth;
+	/** Degrees above the horizon. */
+	public final float[] elevation;
+	public final boolean[] used;
+
+	private SatelliteSnapshot(final int count, final int usedCount, final int[] prn,
+			final float[] snr, final float[] azimuth, final float[] elevation,
+			final boolean[] used) {
+		this.count = count;
+		this.usedCount = usedCount;
+		this.prn = prn;
+		this.snr = snr;
+		this.azimuth = azimuth;
+		this.elevation = elevation;
+		this.used = used;
+	}
+
+	/** Copies the satellites of status, however many there are. */
+	public static SatelliteSnapshot of(final GpsStatus status) {
+		final Iterable<GpsSatellite> sats = status == null ? null : status.getSatellites();
+		if (sats == null)
+			return EMPTY;
+		int n = 0;
+		for (final GpsSatellite s : sats) {
+			n++;
+		}
+		final int[] prn = new int[n];
+		final float[] snr = new float[n];
+		final float[] azimuth = new float[n];
+		final float[] elevation = new float[n];
+		final boolean[] used = new boolean[n];
+		int i = 0;
+		int usedCount = 0;
+		for (final GpsSatellite s : sats) {
+			if (i == n)
+				break; // the status changed under us, keep what fits
+			prn[i] = s.getPrn();
+			snr[i] = s.getSnr();
+			azimuth[i] = s.getAzimuth();
+			elevation[i] = s.getElevation();
+			used[i] = s.usedInFix();
+			if (used[i])
+				usedCount++;
+			i++;
+		}
+		return new SatelliteSnapshot(i, usedCount, prn, snr, azimuth, elevation, used);
+	}
+}
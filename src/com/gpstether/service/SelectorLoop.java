@@ -0,0 +1,248 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Non-blocking event loop serving any number of gpsd clients from one thread.
+ * The first loop of a server also owns the listening channel and deals the
+ * accepted clients round robin over all loops (shards), so a handful of
+ * loops can serve many clients without a thread per connection.
+ */
+public class SelectorLoop implements Runnable {
+
+	private final CallbackThread mCB;
+	private final Selector mSelector;
+
+	private ServerSocketChannel mServerChannel = null;
+	private SelectorLoop[] mShards = null;
+	private int mNextShard = 0;
+	private UdpNmeaSender mUdp = null;
+
+	private final ConcurrentLinkedQueue<SocketChannel> mPending = new ConcurrentLinkedQueue<SocketChannel>();
+	private final List<ClientSession> mSessions = new ArrayList<ClientSession>();
+
+	private volatile boolean mDone = false;
+	private volatile boolean mFixPending = false;
+	private long mNextDue = 0;
+	// this loop's cursors over the latest frame, shared by all its clients
+	private GpsFrame.Views mViews = GpsFrame.EMPTY.newViews();
+
+	public SelectorLoop(final CallbackThread cb) throws IOException {
+		mCB = cb;
+		mSelector = Selector.open();
+	}
+
+	/**
+	 * Makes this loop the accepting loop: it listens on the given channel and
+	 * distributes new clients over the given shards (which may include itself).
+	 */
+	public void setServerChannel(final ServerSocketChannel server,
+			final SelectorLoop[] shards) throws IOException {
+		mServerChannel = server;
+		mShards = shards;
+		mServerChannel.configureBlocking(false);
+		mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+	}
+
+	/** Also sends every fix to sender, set before the loop runs. */
+	public void setUdpSender(final UdpNmeaSender sender) {
+		mUdp = sender;
+	}
+
+	/** Hands a freshly accepted client to this loop, may be called from any thread. */
+	public void addClient(final SocketChannel channel) {
+		mPending.add(channel);
+		mSelector.wakeup();
+	}
+
+	/** Signals a new fix, may be called from any thread. */
+	public void onNewFix() {
+		mFixPending = true;
+		mSelector.wakeup();
+	}
+
+	public void requestExit() {
+		mDone = true;
+		mSelector.wakeup();
+	}
+
+	private void accept() {
+		SocketChannel channel;
+		try {
+			while ((channel = mServerChannel.accept()) != null) {
+				channel.socket().setKeepAlive(true);
+				Log.d(getClass().toString(), "Client got connected: "
+						+ channel.socket().getRemoteSocketAddress());
+				final SelectorLoop shard = mShards[mNextShard];
+				mNextShard = (mNextShard + 1) % mShards.length;
+				shard.addClient(channel);
+			}
+		} catch (final IOException e) {
+			Log.e(getClass().toString(), "Error on client accept!");
+			e.printStackTrace();
+		}
+	}
+
+	private void registerPending() {
+		SocketChannel channel;
+		while ((channel = mPending.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				final SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+				final ClientSession session = new ClientSession(channel, key, mCB);
+				key.attach(session);
+				mSessions.add(session);
+			} catch (final ClosedChannelException e) {
+				Log.d(getClass().toString(), "Client left before it was registered!");
+			} catch (final IOException e) {
+				Log.e(getClass().toString(), "Error on client register!");
+				e.printStackTrace();
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	/**
+	 * Streams the latest fix to every watching client that has not seen it yet
+	 * and remembers when the next rate limited client becomes due.
+	 */
+	private void deliverFix() {
+		final GpsFrame frame = mCB.getFrame();
+		if (mViews.frame != frame) {
+			mViews = frame.newViews();
+		}
+		if (mUdp != null) {
+			mUdp.onFrame(mViews);
+		}
+		final long now = SystemClock.elapsedRealtime();
+		long next = 0;
+		for (int i = mSessions.size() - 1; i >= 0; i--) {
+			final ClientSession session = mSessions.get(i);
+			final long due = session.onFix(mViews, now);
+			if (session.isClosed()) {
+				mSessions.remove(i);
+			} else if (due > 0 && (next == 0 || due < next)) {
+				next = due;
+			}
+		}
+		mNextDue = next;
+	}
+
+	/** How long select may block: forever unless a rate limited client waits. */
+	private long selectTimeout() {
+		if (mNextDue == 0)
+			return 0;
+		return Math.max(1, mNextDue - SystemClock.elapsedRealtime());
+	}
+
+	@Override
+	public void run() {
+		Log.d(getClass().toString(), "Selector loop started!");
+		while (!mDone) {
+			try {
+				mSelector.select(selectTimeout());
+			} catch (final IOException e) {
+				Log.e(getClass().toString(), "Error on select!");
+				e.printStackTrace();
+				break;
+			}
+			registerPending();
+
+			final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				final SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid())
+					continue;
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				final ClientSession session = (ClientSession) key.attachment();
+				if (key.isReadable()) {
+					session.onReadable();
+				}
+				if (key.isValid() && key.isWritable()) {
+					session.onWritable();
+				}
+				if (session.isClosed()) {
+					mSessions.remove(session);
+				}
+			}
+			if (mFixPending || mNextDue != 0
+					&& SystemClock.elapsedRealtime() >= mNextDue) {
+				mFixPending = false;
+				deliverFix();
+			}
+		}
+		shutdown();
+		Log.d(getClass().toString(), "Selector loop done!");
+	}
+
+	private void shutdown() {
+		// no new clients first, the listening socket goes before the others
+		try {
+			if (mServerChannel != null) {
+				mServerChannel.close();
+			}
+		} catch (final IOException e) {
+			Log.i(getClass().toString(), "Error on server socket close!");
+			e.printStackTrace();
+		}
+		for (int i = 0; i < mSessions.size(); i++) {
+			mSessions.get(i).close();
+		}
+		mSessions.clear();
+		SocketChannel channel;
+		while ((channel = mPending.poll()) != null) {
+			closeQuietly(channel);
+		}
+		if (mUdp != null) {
+			mUdp.close();
+		}
+		try {
+			mSelector.close();
+		} catch (final IOException e) {
+			Log.i(getClass().toString(), "Error on selector close!");
+			e.printStackTrace();
+		}
+	}
+
+	private static void closeQuietly(final SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			// Ignore
+		}
+	}
+}
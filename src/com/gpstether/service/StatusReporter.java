@@ -0,0 +1,133 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Pushes the state of the service to the bound activities with
+ * {@link ITetherServiceCallback#statusChanged}, so they need not poll for
+ * it: running or not, the port the server listens on, the connected clients
+ * and whether the GPS is on. Changes may come from any thread; they are
+ * coalesced and sent from the handler's thread, only when something did
+ * change.
+ */
+public class StatusReporter implements Runnable {
+
+	private final RemoteCallbackList<ITetherServiceCallback> mCallbacks;
+	private final Handler mHandler;
+	private final AtomicBoolean mPosted = new AtomicBoolean();
+
+	private volatile boolean mRunning = false;
+	private volatile int mPort = -1;
+	private volatile int mClients = 0;
+	private volatile boolean mGpsOnline = false;
+
+	/** @param handler of the thread the state is sent from */
+	public StatusReporter(final RemoteCallbackList<ITetherServiceCallback> callbacks,
+			final Handler handler) {
+		mCallbacks = callbacks;
+		mHandler = handler;
+	}
+
+	public void setRunning(final boolean running) {
+		if (mRunning != running) {
+			mRunning = running;
+			changed();
+		}
+	}
+
+	/** @param port the server listens on, -1 if it does not */
+	public void setPort(final int port) {
+		if (mPort != port) {
+			mPort = port;
+			changed();
+		}
+	}
+
+	public void setClients(final int clients) {
+		if (mClients != clients) {
+			mClients = clients;
+			changed();
+		}
+	}
+
+	public void setGpsOnline(final boolean online) {
+		if (mGpsOnline != online) {
+			mGpsOnline = online;
+			changed();
+		}
+	}
+
+	/**
+	 * Sends the final state right away, on the calling thread, before the
+	 * service goes and takes the callbacks with it.
+	 */
+	public void stopped() {
+		mRunning = false;
+		mPort = -1;
+		mClients = 0;
+		mGpsOnline = false;
+		mHandler.removeCallbacks(this);
+		run();
+	}
+
+	/** A new callback gets the current state at once. */
+	public void sendTo(final ITetherServiceCallback cb) {
+		try {
+			cb.statusChanged(mRunning, mPort, mClients, mGpsOnline);
+		} catch (final RemoteException e) {
+			Log.d(getClass().toString(), "RemoteException occured!");
+		}
+	}
+
+	private void changed() {
+		if (mPosted.compareAndSet(false, true)) {
+			mHandler.post(this);
+		}
+	}
+
+	/** Sends the current state to every callback. */
+	public void run() {
+		// changes from now on post again
+		mPosted.set(false);
+		final boolean running = mRunning;
+		final int port = mPort;
+		final int clients = mClients;
+		final boolean gpsOnline = mGpsOnline;
+		synchronized (mCallbacks) {
+			final int N = mCallbacks.beginBroadcast();
+			for (int i = 0; i < N; i++) {
+				try {
+					mCallbacks.getBroadcastItem(i).statusChanged(running, port, clients, gpsOnline);
+				} catch (final RemoteException e) {
+					// The RemoteCallbackList will take care of removing
+					// the dead object for us.
+					Log.d(getClass().toString(), "RemoteException occured!");
+				}
+			}
+			mCallbacks.finishBroadcast();
+		}
+	}
+}
@@ -1,12 +1,17 @@
 package com.gpstether.service;
 
+import java.io.File;
+
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.location.LocationManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -23,6 +28,18 @@ public class TetherService extends Service {
 
 			if (cb != null) {
 				mCallbacks.register(cb);
+				mStatus.sendTo(cb);
+			} else {
+				Log.e(toString(), "Error, cannot register a null callback!");
+			}
+		}
+
+		@Override
+		public void registerFixCallback(final ITetherServiceCallback cb,
+				final long minIntervalMs, final boolean satellites) throws RemoteException {
+			if (cb != null) {
+				mCallbacks.register(cb, new FixSubscription(minIntervalMs, satellites));
+				mStatus.sendTo(cb);
 			} else {
 				Log.e(toString(), "Error, cannot register a null callback!");
 			}
@@ -37,7 +54,13 @@ public class TetherService extends Service {
 		}
 	};
 	private CallbackThread mCbThread = null;
+	// sends the fixes to the bound activities, off the location thread
+	private HandlerThread mFixSender = null;
+	private TrackRecorder mRecorder = null;
+	private TrackReplay mReplay = null;
+	private RateController mRate = null;
 	private final RemoteCallbackList<ITetherServiceCallback> mCallbacks = new RemoteCallbackList<ITetherServiceCallback>();
+	private StatusReporter mStatus = null;
 	private LocationManager mLocMan = null;
 
 	@Override
@@ -49,25 +72,79 @@ public class TetherService extends Service {
 	public void onCreate() {
 		super.onCreate();
 		Log.d(getClass().toString(), "onCreate");
+		mStatus = new StatusReporter(mCallbacks, new Handler());
 	}
 
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
-		if (mCbThread != null) {
+		// the callbacks go with the service, tell them first
+		mStatus.stopped();
+		mCallbacks.kill();
+		stopServer();
+		Toast.makeText(TetherService.this, R.string.service_stopped,
+				Toast.LENGTH_LONG).show();
+	}
+
+	/**
+	 * Stops the server and whatever feeds and records it. All of them are
+	 * told at once and then waited for against one deadline,
+	 * {@link Constants#SHUTDOWN_MS} from now; one that takes longer finishes
+	 * in the background.
+	 */
+	private void stopServer() {
+		if (mRate != null) {
+			mRate.stop();
+			mRate = null;
+		}
+		if (mCbThread != null && mLocMan != null) {
 			Log.d(getClass().toString(), "removing GPS Status listener !");
 			mLocMan.removeUpdates(mCbThread);
 			mLocMan.removeGpsStatusListener(mCbThread);
-			mLocMan = null;
-			mCbThread.requestExitAndWait();
 		}
-		Toast.makeText(TetherService.this, R.string.service_stopped,
-				Toast.LENGTH_LONG).show();
+		mLocMan = null;
+		if (mReplay != null) {
+			mReplay.requestExit();
+		}
+		if (mCbThread != null) {
+			mCbThread.requestExit();
+		}
+		if (mRecorder != null) {
+			mRecorder.requestExit();
+		}
+		final long deadline = SystemClock.elapsedRealtime() + Constants.SHUTDOWN_MS;
+		if (mReplay != null) {
+			mReplay.waitForExit(deadline);
+			mReplay = null;
+		}
+		if (mCbThread != null) {
+			mCbThread.waitForExit(deadline);
+			mCbThread = null;
+		}
+		if (mRecorder != null) {
+			mRecorder.waitForExit(deadline);
+			mRecorder = null;
+		}
+		if (mFixSender != null) {
+			// HandlerThread.quit() is API level 5
+			mFixSender.getLooper().quit();
+			mFixSender = null;
+		}
 	}
 
 	@Override
 	public void onStart(final Intent intent, final int startId) {
 		super.onStart(intent, startId);
+		if (mCbThread != null && mCbThread.isAlive()) {
+			// every startService() ends up here, the server is running already
+			Log.d(getClass().toString(), "onStart: already serving, nothing to do");
+			return;
+		}
+		if (mCbThread != null) {
+			// the last server died, e.g. the port was taken: clear up after it
+			Log.w(getClass().toString(), "onStart: server thread died, starting over");
+			stopServer();
+		}
 
 		final int default_server_port = Integer.valueOf(this
 				.getString(R.string.default_server_port));
@@ -77,17 +154,49 @@ public class TetherService extends Service {
 	
 		mLocMan = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
 		mCbThread = new CallbackThread(default_server_port, mLocMan, mCallbacks);
+		mCbThread.setStatusReporter(mStatus);
+		mFixSender = new HandlerThread("gpsd-callbacks");
+		mFixSender.start();
+		mCbThread.setFixHandler(new Handler(mFixSender.getLooper()));
 
-		mLocMan.addGpsStatusListener(mCbThread);
-		mLocMan.requestLocationUpdates(LocationManager.GPS_PROVIDER,
-									   Constants.GPS_UPDATE_MS_TH,
-									   Constants.GPS_UPDATE_METERS_TH, mCbThread);
-		
-		mLocMan.requestLocationUpdates(LocationManager.NETWORK_PROVIDER,
-									   Constants.NETW_UPDATE_MS_TH, 
-									   Constants.NETW_UPDATE_METERS_TH, mCbThread);
+		final String replay = intent != null ? intent.getStringExtra(Constants.EXTRA_REPLAY) : null;
+		if (replay != null) {
+			// a recorded track stands in for the GPS
+			mReplay = new TrackReplay(new File(replay), mCbThread,
+					intent.getFloatExtra(Constants.EXTRA_REPLAY_SPEED, 1.0f),
+					intent.getBooleanExtra(Constants.EXTRA_REPLAY_LOOP, false));
+		} else {
+			mLocMan.addGpsStatusListener(mCbThread);
+			// registers the updates, at the idle rate until clients show up
+			mRate = new RateController(mLocMan, mCbThread, new Handler());
+			mCbThread.setRateController(mRate);
+			mRate.start();
+		}
 		
+		if (intent != null && intent.getBooleanExtra(Constants.EXTRA_RECORD, false)) {
+			final int format = "nmea".equals(intent.getStringExtra(Constants.EXTRA_RECORD_FORMAT))
+					? TrackRecorder.FORMAT_NMEA : TrackRecorder.FORMAT_BINARY;
+			mRecorder = new TrackRecorder(new File(getFilesDir(), Constants.RECORD_DIR), format,
+					Constants.RECORD_SEGMENT_BYTES, Constants.RECORD_SEGMENT_MS);
+			mRecorder.start();
+			mCbThread.setRecorder(mRecorder);
+		}
+
+		final String udpHost = intent != null ? intent.getStringExtra(Constants.EXTRA_UDP_HOST) : null;
+		if (udpHost != null) {
+			mCbThread.setUdpSender(new UdpNmeaSender(udpHost,
+					intent.getIntExtra(Constants.EXTRA_UDP_PORT, Constants.UDP_NMEA_PORT)));
+		}
+
+		if (intent != null && intent.getBooleanExtra(Constants.EXTRA_FILTER, false)) {
+			mCbThread.setFilter(new KalmanFilter());
+		}
+
 		mCbThread.start();
+		if (mReplay != null) {
+			mReplay.start();
+		}
+		mStatus.setRunning(true);
 		// Tell the user we have started.
 		Toast.makeText(TetherService.this, R.string.service_started,
 				Toast.LENGTH_SHORT).show();
@@ -0,0 +1,296 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Records every fix to rolling memory mapped segment files, either as compact
+ * binary records or as NMEA GGA and RMC sentences. The location callback only
+ * drops the fix into a single producer, single consumer ring and returns; a
+ * writer thread of its own drains the ring once per
+ * {@link Constants#RECORD_FLUSH_MS} and does all the I/O. When the ring is
+ * full the fix is counted as dropped, the callback never waits.
+ *
+ * Binary segments start with the header "GTRK", version and record size
+ * (little endian) followed by fixed size records, see {@link #RECORD_SIZE}.
+ */
+public class TrackRecorder implements Runnable {
+
+	public static final int FORMAT_BINARY 	= 0;
+	public static final int FORMAT_NMEA 	= 1;
+
+	static final int MAGIC 			= 0x4b525447; // "GTRK" little endian
+	static final int VERSION 		= 1;
+	static final int HEADER_SIZE 	= 8;
+	/*
+	 * time ms (8), lat and lon 1e-7 degrees (4 + 4), altitude cm (4), speed
+	 * cm/s (2), bearing 0.01 degrees (2), accuracy dm or 0xffff (2),
+	 * provider (1), satellites used (1). The shorts are unsigned: speed goes
+	 * up to 655.35 m/s and the bearing is 0..35999, read them with & 0xffff.
+	 */
+	static final int RECORD_SIZE 	= 28;
+	static final int NO_ACCURACY 	= 0xffff;
+
+	private final File mDir;
+	private final int mFormat;
+	private final int mSegmentBytes;
+	private final long mSegmentMs;
+
+	// the ring, filled by the location callback, drained by the writer
+	private final int mMask;
+	private final long[] mTime;
+	private final double[] mLat, mLon, mAlt;
+	private final float[] mSpeed, mBearing, mAccuracy;
+	private final byte[] mProvider, mSatellites;
+	private volatile long mHead = 0; // next slot to fill
+	private volatile long mTail = 0; // next slot to write out
+	private volatile long mDropped = 0;
+
+	private volatile boolean mDone = false;
+	private Thread mThread = null;
+
+	// writer thread only
+	private final NmeaEncoder mNmea = new NmeaEncoder(new AsciiBuffer(256));
+	private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE)
+			.order(ByteOrder.LITTLE_ENDIAN);
+	private RandomAccessFile mFile = null;
+	private MappedByteBuffer mMap = null;
+	private long mSegmentStart = 0;
+	private boolean mFailed = false;
+
+	/**
+	 * @param dir where the segments go, created if missing
+	 * @param format FORMAT_BINARY or FORMAT_NMEA
+	 * @param segmentBytes size at which a new segment is started
+	 * @param segmentMs fix time span after which a new segment is started
+	 */
+	public TrackRecorder(final File dir, final int format, final int segmentBytes,
+			final long segmentMs) {
+		mDir = dir;
+		mFormat = format;
+		mSegmentBytes = segmentBytes;
+		mSegmentMs = segmentMs;
+		int size = 1;
+		while (size < Constants.RECORD_QUEUE_SIZE) {
+			size <<= 1;
+		}
+		mMask = size - 1;
+		mTime = new long[size];
+		mLat = new double[size];
+		mLon = new double[size];
+		mAlt = new double[size];
+		mSpeed = new float[size];
+		mBearing = new float[size];
+		mAccuracy = new float[size];
+		mProvider = new byte[size];
+		mSatellites = new byte[size];
+	}
+
+	public void start() {
+		mThread = new Thread(this, "gpsd-recorder");
+		mThread.start();
+	}
+
+	/** Queues a fix for the writer. Only ever called from one thread. */
+	public void record(final Location loc, final int satellites) {
+		final long head = mHead;
+		if (head - mTail > mMask) {
+			mDropped++;
+			return;
+		}
+		final int slot = (int) head & mMask;
+		mTime[slot] = loc.getTime();
+		mLat[slot] = loc.getLatitude();
+		mLon[slot] = loc.getLongitude();
+		mAlt[slot] = loc.getAltitude();
+		mSpeed[slot] = loc.getSpeed();
+		mBearing[slot] = loc.getBearing();
+		mAccuracy[slot] = loc.hasAccuracy() ? loc.getAccuracy() : -1;
+		mProvider[slot] = FixHistory.provider(loc.getProvider());
+		mSatellites[slot] = (byte) Math.min(satellites, 255);
+		// publishes the slot to the writer
+		mHead = head + 1;
+	}
+
+	/** Fixes lost because the writer fell behind. */
+	public long getDropped() {
+		return mDropped;
+	}
+
+	/**
+	 * Writes out what is queued, closes the segment and stops the writer.
+	 * Waits at most {@link Constants#SHUTDOWN_MS}, a slow flush to external
+	 * storage goes on in the background.
+	 */
+	public void requestExitAndWait() {
+		requestExit();
+		waitForExit(SystemClock.elapsedRealtime() + Constants.SHUTDOWN_MS);
+	}
+
+	/** Tells the writer to write out what is queued and stop, does not wait. */
+	public void requestExit() {
+		mDone = true;
+		final Thread t = mThread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Waits for the writer to stop, up to deadline in
+	 * {@link SystemClock#elapsedRealtime()} time.
+	 *
+	 * @return false if it is still writing
+	 */
+	public boolean waitForExit(final long deadline) {
+		final Thread t = mThread;
+		if (t == null)
+			return true;
+		try {
+			t.join(CallbackThread.remaining(deadline));
+		} catch (final InterruptedException e) {
+			Log.e(getClass().toString(), "Interrupted while waiting for the recorder!");
+		}
+		if (t.isAlive()) {
+			Log.w(getClass().toString(), "Track recorder still writing at the deadline!");
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		Log.d(getClass().toString(), "Track recorder started!");
+		while (!mDone) {
+			drain();
+			LockSupport.parkNanos(this, Constants.RECORD_FLUSH_MS * 1000000L);
+		}
+		drain();
+		closeSegment();
+		Log.d(getClass().toString(), "Track recorder done, " + mDropped + " fixes dropped");
+	}
+
+	private void drain() {
+		final long head = mHead;
+		long tail = mTail;
+		for (; tail < head; tail++) {
+			if (!mFailed) {
+				write((int) tail & mMask);
+			}
+		}
+		// hands the slots back to the producer
+		mTail = tail;
+	}
+
+	private void write(final int slot) {
+		final ByteBuffer out = encode(slot);
+		if (mMap != null && (out.remaining() > mMap.remaining()
+				|| mTime[slot] - mSegmentStart >= mSegmentMs)) {
+			closeSegment();
+		}
+		if (mMap == null && !openSegment(mTime[slot]))
+			return;
+		mMap.put(out);
+	}
+
+	private ByteBuffer encode(final int slot) {
+		if (mFormat == FORMAT_NMEA) {
+			final AsciiBuffer b = mNmea.getBuffer();
+			b.reset();
+			mNmea.setFix(mTime[slot], mLat[slot], mLon[slot], mAlt[slot],
+					mSpeed[slot], mBearing[slot], true);
+			mNmea.setSatellites(mSatellites[slot] & 0xff, 0, 0, 0);
+			mNmea.gga();
+			mNmea.rmc();
+			return ByteBuffer.wrap(b.array(), 0, b.length());
+		}
+		final ByteBuffer r = mRecord;
+		r.clear();
+		r.putLong(mTime[slot]);
+		r.putInt((int) Math.round(mLat[slot] * 1e7));
+		r.putInt((int) Math.round(mLon[slot] * 1e7));
+		r.putInt((int) Math.round(mAlt[slot] * 100));
+		r.putShort((short) Math.min(Math.round(mSpeed[slot] * 100), 0xffff));
+		// 359.996 rounds to 36000, which is 0 again
+		r.putShort((short) (Math.round(mBearing[slot] * 100) % 36000));
+		r.putShort((short) (mAccuracy[slot] < 0 ? NO_ACCURACY
+				: Math.min(Math.round(mAccuracy[slot] * 10), NO_ACCURACY - 1)));
+		r.put(mProvider[slot]);
+		r.put(mSatellites[slot]);
+		r.flip();
+		return r;
+	}
+
+	private boolean openSegment(final long time) {
+		final AsciiBuffer name = new AsciiBuffer(48);
+		name.append("track-").appendIsoTime(time)
+			.append(mFormat == FORMAT_NMEA ? ".nmea" : ".gtrk");
+		// ':' is no good in file names
+		final File file = new File(mDir, name.toString().replace(':', '-'));
+		try {
+			if (!mDir.isDirectory() && !mDir.mkdirs())
+				throw new IOException("cannot create " + mDir);
+			mFile = new RandomAccessFile(file, "rw");
+			mMap = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentBytes);
+		} catch (final IOException e) {
+			Log.e(getClass().toString(), "Cannot record to " + file + ", recording stopped!");
+			e.printStackTrace();
+			closeSegment();
+			mFailed = true;
+			return false;
+		}
+		mMap.order(ByteOrder.LITTLE_ENDIAN);
+		if (mFormat == FORMAT_BINARY) {
+			mMap.putInt(MAGIC).putShort((short) VERSION).putShort((short) RECORD_SIZE);
+		}
+		mSegmentStart = time;
+		Log.d(getClass().toString(), "Recording to " + file);
+		return true;
+	}
+
+	/** Flushes the segment and cuts the file to what was written. */
+	private void closeSegment() {
+		try {
+			if (mMap != null) {
+				mMap.force();
+				mFile.getChannel().truncate(mMap.position());
+			}
+			if (mFile != null) {
+				mFile.close();
+			}
+		} catch (final IOException e) {
+			Log.e(getClass().toString(), "Cannot close track segment!");
+			e.printStackTrace();
+		}
+		mMap = null;
+		mFile = null;
+	}
+}
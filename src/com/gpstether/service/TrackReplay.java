@@ -0,0 +1,442 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Plays a recorded track into a {@link LocationListener}, usually the
+ * {@link CallbackThread} in place of the location manager. Reads the binary
+ * segments of {@link TrackRecorder} or any NMEA log; the file is streamed
+ * through one small buffer and NMEA is parsed byte by byte, so a log of any
+ * size replays in constant memory.
+ *
+ * NMEA fixes are taken from RMC, which has the date; a GGA of the same time
+ * adds altitude, satellites and HDOP. Lines with a bad checksum are skipped.
+ *
+ * The speed is a factor on the recorded time: 1 plays in real time, 10 ten
+ * times faster and 0 as fast as the listener takes the fixes.
+ */
+public class TrackReplay implements Runnable {
+
+	// fields we look at in GGA and RMC are all within the first 12
+	private static final int MAX_FIELDS = 16;
+	private static final double KNOTS_TO_MS = 1852.0 / 3600.0;
+	private static final double[] POW10 = new double[19];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+
+	private final File mFile;
+	private final LocationListener mListener;
+	private final double mSpeed;
+	private final boolean mLoop;
+
+	private volatile boolean mDone = false;
+	private volatile long mReplayed = 0;
+	private Thread mThread = null;
+
+	private final ByteBuffer mBuf = ByteBuffer.allocate(Constants.REPLAY_BUFFER);
+	private final int[] mField = new int[MAX_FIELDS + 1];
+	private int mFields = 0;
+
+	// pacing, and the shift that keeps time going forward when looping
+	private long mFirstTime = -1;
+	private long mStartNanos = 0;
+	private long mLastTime = -1;
+	private long mOffset = 0;
+
+	// the last GGA, merged into the RMC of the same time
+	private long mGgaTod = -1;
+	private double mGgaAlt = 0;
+	private int mGgaSats = 0;
+	private float mGgaHdop = 0;
+
+	/**
+	 * @param speed factor on the recorded time, 0 for as fast as possible
+	 * @param loop start over at the end of the file until stopped
+	 */
+	public TrackReplay(final File file, final LocationListener listener, final double speed,
+			final boolean loop) {
+		mFile = file;
+		mListener = listener;
+		mSpeed = speed;
+		mLoop = loop;
+	}
+
+	public void start() {
+		mThread = new Thread(this, "gpsd-replay");
+		mThread.start();
+	}
+
+	/** Fixes handed to the listener so far. */
+	public long getReplayed() {
+		return mReplayed;
+	}
+
+	/** Stops the replay and waits at most {@link Constants#SHUTDOWN_MS} for it. */
+	public void requestExitAndWait() {
+		requestExit();
+		waitForExit(SystemClock.elapsedRealtime() + Constants.SHUTDOWN_MS);
+	}
+
+	/** Tells the replay to stop after the fix it is at, does not wait. */
+	public void requestExit() {
+		mDone = true;
+		final Thread t = mThread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Waits for the replay to stop, up to deadline in
+	 * {@link SystemClock#elapsedRealtime()} time.
+	 *
+	 * @return false if it is still running
+	 */
+	public boolean waitForExit(final long deadline) {
+		final Thread t = mThread;
+		if (t == null)
+			return true;
+		try {
+			t.join(CallbackThread.remaining(deadline));
+		} catch (final InterruptedException e) {
+			Log.e(getClass().toString(), "Interrupted while waiting for the replay!");
+		}
+		if (t.isAlive()) {
+			Log.w(getClass().toString(), "Replay still running at the deadline!");
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		Log.d(getClass().toString(), "Replaying " + mFile + " at speed " + mSpeed);
+		do {
+			final long replayed = mReplayed;
+			replayOnce();
+			if (mReplayed == replayed)
+				break; // nothing in the file
+			// the next round starts one update interval after this one ended
+			mOffset = mLastTime + Constants.GPS_UPDATE_MS_TH - mFirstTime;
+		} while (mLoop && !mDone);
+		Log.d(getClass().toString(), "Replay done, " + mReplayed + " fixes");
+	}
+
+	private void replayOnce() {
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(mFile);
+			final FileChannel ch = in.getChannel();
+			mBuf.clear();
+			mBuf.order(ByteOrder.LITTLE_ENDIAN);
+			while (mBuf.position() < 4 && ch.read(mBuf) >= 0) {
+				// the magic decides the format
+			}
+			if (mBuf.position() >= 4 && mBuf.getInt(0) == TrackRecorder.MAGIC) {
+				replayBinary(ch);
+			} else {
+				replayNmea(ch);
+			}
+		} catch (final IOException e) {
+			Log.e(getClass().toString(), "Cannot replay " + mFile + "!");
+			e.printStackTrace();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	private void replayBinary(final FileChannel ch) throws IOException {
+		final ByteBuffer b = mBuf;
+		boolean header = true;
+		int recordSize = TrackRecorder.RECORD_SIZE;
+		while (!mDone) {
+			final boolean eof = ch.read(b) < 0;
+			b.flip();
+			if (header) {
+				if (b.remaining() < TrackRecorder.HEADER_SIZE)
+					return;
+				b.getInt();
+				b.getShort();
+				recordSize = b.getShort() & 0xffff;
+				if (recordSize < TrackRecorder.RECORD_SIZE) {
+					Log.e(getClass().toString(), mFile + " has records of " + recordSize
+							+ " bytes, too short!");
+					return;
+				}
+				header = false;
+			}
+			while (b.remaining() >= recordSize && !mDone) {
+				final int start = b.position();
+				final Location loc = new Location(provider(b.get(start + 26)));
+				loc.setTime(b.getLong(start));
+				loc.setLatitude(b.getInt(start + 8) / 1e7);
+				loc.setLongitude(b.getInt(start + 12) / 1e7);
+				loc.setAltitude(b.getInt(start + 16) / 100.0);
+				loc.setSpeed((b.getShort(start + 20) & 0xffff) / 100.0f);
+				loc.setBearing((b.getShort(start + 22) & 0xffff) / 100.0f);
+				final int accuracy = b.getShort(start + 24) & 0xffff;
+				if (accuracy != TrackRecorder.NO_ACCURACY) {
+					loc.setAccuracy(accuracy / 10.0f);
+				}
+				final Bundle extras = new Bundle();
+				extras.putInt("satellites", b.get(start + 27) & 0xff);
+				loc.setExtras(extras);
+				// newer versions may append fields, we skip them
+				b.position(start + recordSize);
+				emit(loc);
+			}
+			b.compact();
+			if (eof)
+				return;
+		}
+	}
+
+	private static String provider(final byte provider) {
+		switch (provider) {
+		case FixHistory.PROVIDER_GPS:
+			return LocationManager.GPS_PROVIDER;
+		case FixHistory.PROVIDER_NETWORK:
+			return LocationManager.NETWORK_PROVIDER;
+		default:
+			return "replay";
+		}
+	}
+
+	private void replayNmea(final FileChannel ch) throws IOException {
+		final ByteBuffer b = mBuf;
+		final byte[] a = b.array();
+		while (!mDone) {
+			final boolean eof = ch.read(b) < 0;
+			final int end = b.position();
+			int line = 0;
+			for (int i = 0; i < end; i++) {
+				if (a[i] == '\n') {
+					if (mDone)
+						return;
+					onLine(a, line, i);
+					line = i + 1;
+				}
+			}
+			if (eof) {
+				// the last line may lack its newline
+				if (line < end) {
+					onLine(a, line, end);
+				}
+				return;
+			}
+			if (line == 0 && end == a.length) {
+				line = end; // longer than any sentence, drop it
+			}
+			b.limit(end).position(line);
+			b.compact();
+		}
+	}
+
+	/** One line, a[off] up to but not including a[end]. */
+	private void onLine(final byte[] a, final int off, int end) {
+		if (end > off && a[end - 1] == '\r') {
+			end--;
+		}
+		// $ttGGA, at least
+		if (end - off < 7 || a[off] != '$')
+			return;
+		// split at the commas and check the checksum if there is one
+		int sum = 0;
+		int n = 0;
+		mField[n++] = off + 1;
+		int i = off + 1;
+		for (; i < end && a[i] != '*'; i++) {
+			sum ^= a[i];
+			if (a[i] == ',' && n < MAX_FIELDS) {
+				mField[n++] = i + 1;
+			}
+		}
+		mField[n] = i + 1; // so field k ends at mField[k + 1] - 1
+		mFields = n;
+		if (i < end && (i + 3 > end || hex(a[i + 1]) * 16 + hex(a[i + 2]) != sum))
+			return;
+		final int type = off + 3;
+		if (a[type] == 'G' && a[type + 1] == 'G' && a[type + 2] == 'A') {
+			onGga(a);
+		} else if (a[type] == 'R' && a[type + 1] == 'M' && a[type + 2] == 'C') {
+			onRmc(a);
+		}
+	}
+
+	// $GPGGA,hhmmss.ss,ddmm.mmmm,N,dddmm.mmmm,E,q,nn,hdop,alt,M,...
+	private void onGga(final byte[] a) {
+		final long tod = timeOfDay(a, 1);
+		if (tod < 0 || !(number(a, 6) > 0))
+			return; // no fix
+		mGgaTod = tod;
+		mGgaAlt = number(a, 9);
+		mGgaSats = (int) Math.max(0, number(a, 7));
+		mGgaHdop = (float) number(a, 8);
+	}
+
+	// $GPRMC,hhmmss.ss,A,ddmm.mmmm,N,dddmm.mmmm,E,knots,course,ddmmyy,...
+	private void onRmc(final byte[] a) {
+		if (mFields < 10 || a[mField[2]] != 'A')
+			return;
+		final long tod = timeOfDay(a, 1);
+		final double date = number(a, 9);
+		final double lat = degrees(a, 3, 'S');
+		final double lon = degrees(a, 5, 'W');
+		if (tod < 0 || Double.isNaN(date) || Double.isNaN(lat) || Double.isNaN(lon))
+			return;
+		final int ddmmyy = (int) date;
+		final int yy = ddmmyy % 100;
+		final long days = AsciiBuffer.civilDays(yy < 80 ? 2000 + yy : 1900 + yy,
+				ddmmyy / 100 % 100, ddmmyy / 10000);
+
+		final Location loc = new Location(LocationManager.GPS_PROVIDER);
+		loc.setTime(days * AsciiBuffer.MS_PER_DAY + tod);
+		loc.setLatitude(lat);
+		loc.setLongitude(lon);
+		final double knots = number(a, 7);
+		if (!Double.isNaN(knots)) {
+			loc.setSpeed((float) (knots * KNOTS_TO_MS));
+		}
+		final double course = number(a, 8);
+		if (!Double.isNaN(course)) {
+			loc.setBearing((float) course);
+		}
+		if (tod == mGgaTod) {
+			loc.setAltitude(mGgaAlt);
+			final Bundle extras = new Bundle();
+			extras.putInt("satellites", mGgaSats);
+			extras.putFloat("hdop", mGgaHdop);
+			loc.setExtras(extras);
+		}
+		emit(loc);
+	}
+
+	/** Field k as hhmmss.ss in ms since midnight, -1 if empty. */
+	private long timeOfDay(final byte[] a, final int k) {
+		final double t = number(a, k);
+		if (Double.isNaN(t))
+			return -1;
+		final int hhmmss = (int) t;
+		return (hhmmss / 10000 * 3600L + hhmmss / 100 % 100 * 60 + hhmmss % 100) * 1000
+				+ Math.round((t - hhmmss) * 1000);
+	}
+
+	/** Field k as (d)ddmm.mmmm and field k + 1 the hemisphere, in degrees. */
+	private double degrees(final byte[] a, final int k, final char negative) {
+		final double v = number(a, k);
+		if (Double.isNaN(v))
+			return Double.NaN;
+		final int deg = (int) (v / 100);
+		final double d = deg + (v - deg * 100) / 60.0;
+		return k + 1 < mFields && a[mField[k + 1]] == negative ? -d : d;
+	}
+
+	/** Field k as a decimal number, NaN if it is empty, missing or no number. */
+	private double number(final byte[] a, final int k) {
+		if (k >= mFields)
+			return Double.NaN;
+		int i = mField[k];
+		final int end = mField[k + 1] - 1;
+		if (i >= end)
+			return Double.NaN;
+		boolean negative = false;
+		if (a[i] == '-') {
+			negative = true;
+			i++;
+		}
+		long mantissa = 0;
+		int scale = -1;
+		int digits = 0;
+		for (; i < end; i++) {
+			final int c = a[i];
+			if (c >= '0' && c <= '9') {
+				if (digits++ < 18) {
+					mantissa = mantissa * 10 + c - '0';
+					if (scale >= 0) {
+						scale++;
+					}
+				}
+			} else if (c == '.' && scale < 0) {
+				scale = 0;
+			} else {
+				return Double.NaN;
+			}
+		}
+		if (digits == 0)
+			return Double.NaN;
+		final double v = scale > 0 ? mantissa / POW10[scale] : mantissa;
+		return negative ? -v : v;
+	}
+
+	private static int hex(final byte c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		return -256; // never matches a checksum
+	}
+
+	/** Waits until the fix is due and hands it on. */
+	private void emit(final Location loc) {
+		final long time = loc.getTime() + mOffset;
+		loc.setTime(time);
+		if (mFirstTime < 0) {
+			mFirstTime = time;
+			mStartNanos = System.nanoTime();
+		} else if (mSpeed > 0) {
+			final long due = mStartNanos + (long) ((time - mFirstTime) * 1000000.0 / mSpeed);
+			long wait;
+			while (!mDone && (wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, wait);
+			}
+		}
+		if (mDone)
+			return;
+		mLastTime = time;
+		mListener.onLocationChanged(loc);
+		mReplayed++;
+	}
+}
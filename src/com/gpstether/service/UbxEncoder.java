@@ -0,0 +1,202 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.location.Location;
+import android.os.Bundle;
+
+/**
+ * Builds u-blox UBX NAV-PVT and NAV-SAT messages, so binary clients read a
+ * fix at fixed offsets instead of parsing text. Every field is written at its
+ * offset in a reused little endian buffer and the two byte Fletcher checksum
+ * is added at the end; nothing allocates. Unknown accuracies are sent as the
+ * largest value, like a receiver without a solution does. Not thread safe.
+ */
+public class UbxEncoder {
+
+	private static final int SYNC_1 	= 0xb5;
+	private static final int SYNC_2 	= 0x62;
+	private static final int CLASS_NAV 	= 0x01;
+	private static final int ID_PVT 	= 0x07;
+	private static final int ID_SAT 	= 0x35;
+
+	// sync, class, id and length in front, checksum behind the payload
+	private static final int HEADER 	= 6;
+	private static final int PVT_LEN 	= 92;
+	private static final int SAT_MAX 	= 255;
+
+	// GPS time started 1980-01-06 and is ahead of UTC by the leap seconds
+	private static final long GPS_EPOCH_MS 	= 315964800000L;
+	private static final long GPS_LEAP_MS 	= 18000L;
+	private static final long MS_PER_WEEK 	= 7L * AsciiBuffer.MS_PER_DAY;
+	private static final int UNKNOWN 		= 0xffffffff;
+
+	private final ByteBuffer mPvt = ByteBuffer.allocate(HEADER + PVT_LEN + 2)
+			.order(ByteOrder.LITTLE_ENDIAN);
+	private final ByteBuffer mSat = ByteBuffer.allocate(HEADER + 8 + 12 * SAT_MAX + 2)
+			.order(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * NAV-PVT for a fix, valid until the next call.
+	 *
+	 * @param numSv satellites used in the fix
+	 * @param velDown vertical speed in m/s, positive going down
+	 */
+	public ByteBuffer navPvt(final Location loc, final int numSv, final float velDown) {
+		final ByteBuffer b = mPvt;
+		b.clear();
+		final int p = HEADER;
+		final long time = loc.getTime();
+		long day = time / AsciiBuffer.MS_PER_DAY;
+		long tod = time % AsciiBuffer.MS_PER_DAY;
+		if (tod < 0) {
+			day--;
+			tod += AsciiBuffer.MS_PER_DAY;
+		}
+		final int date = AsciiBuffer.civilDate(day);
+		final double speed = loc.getSpeed();
+		final double track = Math.toRadians(loc.getBearing());
+		final Bundle extras = loc.getExtras();
+		final float pdop = extras != null ? extras.getFloat("pdop") : 0;
+		final int hAcc = loc.hasAccuracy() ? Math.round(loc.getAccuracy() * 1000) : UNKNOWN;
+		final int height = (int) Math.round(loc.getAltitude() * 1000);
+
+		b.putInt(p, iTow(time));
+		b.putShort(p + 4, (short) (date / 10000));
+		b.put(p + 6, (byte) (date / 100 % 100));
+		b.put(p + 7, (byte) (date % 100));
+		b.put(p + 8, (byte) (tod / 3600000));
+		b.put(p + 9, (byte) (tod / 60000 % 60));
+		b.put(p + 10, (byte) (tod / 1000 % 60));
+		b.put(p + 11, (byte) 0x03); // validDate, validTime
+		b.putInt(p + 12, UNKNOWN); // tAcc
+		b.putInt(p + 16, (int) (tod % 1000) * 1000000); // nano
+		b.put(p + 20, (byte) (loc.hasAltitude() ? 3 : 2)); // fixType
+		b.put(p + 21, (byte) 0x01); // gnssFixOK
+		b.put(p + 22, (byte) 0);
+		b.put(p + 23, (byte) Math.min(numSv, SAT_MAX));
+		b.putInt(p + 24, (int) Math.round(loc.getLongitude() * 1e7));
+		b.putInt(p + 28, (int) Math.round(loc.getLatitude() * 1e7));
+		b.putInt(p + 32, height); // height above ellipsoid
+		b.putInt(p + 36, height); // hMSL, no geoid model here
+		b.putInt(p + 40, hAcc);
+		b.putInt(p + 44, UNKNOWN); // vAcc
+		b.putInt(p + 48, (int) Math.round(speed * Math.cos(track) * 1000)); // velN
+		b.putInt(p + 52, (int) Math.round(speed * Math.sin(track) * 1000)); // velE
+		b.putInt(p + 56, Math.round(velDown * 1000)); // velD
+		b.putInt(p + 60, (int) Math.round(speed * 1000)); // gSpeed
+		b.putInt(p + 64, Math.round(loc.getBearing() * 1e5f)); // headMot
+		b.putInt(p + 68, UNKNOWN); // sAcc
+		b.putInt(p + 72, UNKNOWN); // headAcc
+		b.putShort(p + 76, (short) Math.min(Math.round(pdop * 100), 0xffff));
+		for (int i = 78; i < 84; i++) {
+			b.put(p + i, (byte) 0); // flags3, reserved
+		}
+		b.putInt(p + 84, 0); // headVeh
+		b.putShort(p + 88, (short) 0); // magDec
+		b.putShort(p + 90, (short) 0); // magAcc
+		return finish(b, ID_PVT, PVT_LEN);
+	}
+
+	/** NAV-SAT for the satellites in view, valid until the next call. */
+	public ByteBuffer navSat(final long time, final SatelliteSnapshot sats) {
+		final ByteBuffer b = mSat;
+		b.clear();
+		final int n = Math.min(sats.count, SAT_MAX);
+		b.putInt(HEADER, iTow(time));
+		b.put(HEADER + 4, (byte) 1); // version
+		b.put(HEADER + 5, (byte) n);
+		b.putShort(HEADER + 6, (short) 0);
+		for (int i = 0; i < n; i++) {
+			final int p = HEADER + 8 + 12 * i;
+			final int prn = sats.prn[i];
+			final boolean used = sats.used[i];
+			final int cno = Math.max(0, Math.min(Math.round(sats.snr[i]), 255));
+			b.put(p, (byte) gnssId(prn));
+			b.put(p + 1, (byte) svId(prn));
+			b.put(p + 2, (byte) cno);
+			b.put(p + 3, (byte) Math.round(sats.elevation[i]));
+			b.putShort(p + 4, (short) Math.round(sats.azimuth[i]));
+			b.putShort(p + 6, (short) 0); // prRes
+			// qualityInd: 4 code locked, 2 signal acquired; svUsed; health ok
+			int flags = used ? 4 | 0x08 : cno > 0 ? 2 : 0;
+			if (used) {
+				flags |= 1 << 4;
+			}
+			b.putInt(p + 8, flags);
+		}
+		return finish(b, ID_SAT, 8 + 12 * n);
+	}
+
+	private static int iTow(final long time) {
+		long t = (time - GPS_EPOCH_MS + GPS_LEAP_MS) % MS_PER_WEEK;
+		if (t < 0) {
+			t += MS_PER_WEEK;
+		}
+		return (int) t;
+	}
+
+	/*
+	 * Android numbers satellites of all systems in one PRN range: GPS 1-32,
+	 * SBAS 33-64 (PRN 120-151), GLONASS 65-96, QZSS 193-200, BeiDou 201-235
+	 * and Galileo 301-336.
+	 */
+	private static int gnssId(final int prn) {
+		if (prn <= 32) return 0;
+		if (prn <= 64) return 1;
+		if (prn <= 96) return 6;
+		if (prn >= 193 && prn <= 200) return 5;
+		if (prn >= 201 && prn <= 235) return 3;
+		if (prn >= 301 && prn <= 336) return 2;
+		return 0;
+	}
+
+	private static int svId(final int prn) {
+		if (prn <= 32) return prn;
+		if (prn <= 64) return prn + 87;
+		if (prn <= 96) return prn - 64;
+		if (prn >= 193 && prn <= 200) return prn - 192;
+		if (prn >= 201 && prn <= 235) return prn - 200;
+		if (prn >= 301 && prn <= 336) return prn - 300;
+		return prn & 0xff;
+	}
+
+	/** Writes header and checksum around a payload of len bytes. */
+	private static ByteBuffer finish(final ByteBuffer b, final int id, final int len) {
+		b.put(0, (byte) SYNC_1);
+		b.put(1, (byte) SYNC_2);
+		b.put(2, (byte) CLASS_NAV);
+		b.put(3, (byte) id);
+		b.putShort(4, (short) len);
+		// 8 bit Fletcher over class, id, length and payload
+		int ckA = 0;
+		int ckB = 0;
+		for (int i = 2; i < HEADER + len; i++) {
+			ckA = (ckA + b.get(i)) & 0xff;
+			ckB = (ckB + ckA) & 0xff;
+		}
+		b.put(HEADER + len, (byte) ckA);
+		b.put(HEADER + len + 1, (byte) ckB);
+		b.limit(HEADER + len + 2).position(0);
+		return b;
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ *    GPSTether
+ *    Copyright (C) 2009  Christoph Derigo <www.c99austria.com>
+ *
+ *
+ *    GPSTether is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    GPSTether is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gpstether.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import android.util.Log;
+
+/**
+ * Sends the NMEA sentences of every new fix as one UDP datagram to a
+ * broadcast or multicast address, for displays that only listen. One send
+ * per fix however many of them there are; the datagram comes straight from
+ * the frame's direct buffer. Driven by the first {@link SelectorLoop}, so it
+ * needs no locking and never runs on the main thread.
+ */
+public class UdpNmeaSender {
+
+	private final String mHost;
+	private final int mPort;
+
+	private DatagramChannel mChannel = null;
+	private InetSocketAddress mTarget = null;
+	private long mSentFixSeq = -1;
+	private long mSent = 0;
+	private long mDropped = 0;
+
+	/**
+	 * @param host a broadcast address such as 192.168.1.255 or a multicast
+	 *        group such as 239.192.0.1, resolved in {@link #open()}
+	 */
+	public UdpNmeaSender(final String host, final int port) {
+		mHost = host;
+		mPort = port;
+	}
+
+	/** Resolves the target and opens the socket, false if either failed. */
+	public boolean open() {
+		try {
+			final InetAddress address = InetAddress.getByName(mHost);
+			mTarget = new InetSocketAddress(address, mPort);
+			mChannel = DatagramChannel.open();
+			mChannel.configureBlocking(false);
+			// multicast keeps the default TTL of 1, the local network only
+			mChannel.socket().setBroadcast(true);
+		} catch (final IOException e) {
+			Log.e(getClass().toString(), "Cannot send NMEA to " + mHost + ":" + mPort + "!");
+			e.printStackTrace();
+			close();
+			return false;
+		}
+		Log.d(getClass().toString(), "Sending NMEA to " + mTarget);
+		return true;
+	}
+
+	/** Sends the NMEA block of the frame the views point at, once per fix. */
+	public void onFrame(final GpsFrame.Views views) {
+		final GpsFrame frame = views.frame;
+		if (mChannel == null || frame.fixSeq == mSentFixSeq)
+			return;
+		mSentFixSeq = frame.fixSeq;
+		// the clients put their own position back before every write
+		final ByteBuffer raw = views.raw;
+		raw.position(0);
+		if (!raw.hasRemaining())
+			return;
+		try {
+			if (mChannel.send(raw, mTarget) == 0) {
+				// the socket buffer is full, the next fix makes up for it
+				mDropped++;
+			} else {
+				mSent++;
+			}
+		} catch (final IOException e) {
+			Log.e(getClass().toString(), "Cannot send NMEA datagram!");
+			e.printStackTrace();
+			mDropped++;
+		}
+	}
+
+	public void close() {
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (final IOException e) {
+				// Ignore
+			}
+			mChannel = null;
+		}
+		Log.d(getClass().toString(), "NMEA datagrams sent " + mSent + ", dropped " + mDropped);
+	}
+}